@@ -0,0 +1,110 @@
+package gwtupload.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+
+/** A {@link MockHttpRequest} with parameters, headers and a body read from memory. */
+public class BenchRequest extends MockHttpRequest {
+
+  private final Map<String, String> parameters = new HashMap<String, String>();
+  private final Map<String, String> headers = new HashMap<String, String>();
+  private String method = "GET";
+  private String contentType;
+  private byte[] body = new byte[0];
+
+  public BenchRequest setParameter(String name, String value) {
+    parameters.put(name, value);
+    return this;
+  }
+
+  public BenchRequest setHeader(String name, String value) {
+    headers.put(name.toLowerCase(), value);
+    return this;
+  }
+
+  /** Makes it a POST with this body, read from the start by every call to getInputStream. */
+  public BenchRequest setBody(String contentType, byte[] body) {
+    this.method = "POST";
+    this.contentType = contentType;
+    this.body = body;
+    return this;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getParameter(String name) {
+    return parameters.get(name);
+  }
+
+  public String getHeader(String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+  public Enumeration<String> getHeaders(String name) {
+    final String value = getHeader(name);
+    return Collections.enumeration(value == null ? Collections.<String> emptyList() : Collections.singletonList(value));
+  }
+
+  public Enumeration<String> getHeaderNames() {
+    return Collections.enumeration(headers.keySet());
+  }
+
+  public Enumeration<String> getParameterNames() {
+    return Collections.enumeration(parameters.keySet());
+  }
+
+  public Map<String, String[]> getParameterMap() {
+    final Map<String, String[]> map = new HashMap<String, String[]>();
+    for (Map.Entry<String, String> e : parameters.entrySet()) {
+      map.put(e.getKey(), new String[] { e.getValue() });
+    }
+    return map;
+  }
+
+  public Enumeration<String> getAttributeNames() {
+    return Collections.enumeration(Collections.<String> emptyList());
+  }
+
+  public Enumeration<Locale> getLocales() {
+    return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public int getContentLength() {
+    return body.length;
+  }
+
+  public String getRemoteAddr() {
+    return "127.0.0.1";
+  }
+
+  public ServletInputStream getInputStream() throws IOException {
+    final ByteArrayInputStream in = new ByteArrayInputStream(body);
+    return new ServletInputStream() {
+      public int read() {
+        return in.read();
+      }
+
+      public int read(byte[] b, int off, int len) {
+        return in.read(b, off, len);
+      }
+
+      public int available() {
+        return in.available();
+      }
+    };
+  }
+
+}
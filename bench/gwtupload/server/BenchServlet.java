@@ -0,0 +1,24 @@
+package gwtupload.server;
+
+/**
+ * An {@link UploadServlet} that runs without a container: the fields <code>init</code> would
+ * set are assigned directly, with a single-node cancellation registry and no size limit.
+ */
+public class BenchServlet extends UploadServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  /** @param parserBufferSize the buffer of the fast parser, 0 to parse with commons-fileupload */
+  public BenchServlet(FileRepository repo, int parserBufferSize) {
+    this.repo = repo;
+    this.savePolicy = newProgressSavePolicy();
+    this.cancellations = new CancellationRegistry();
+    this.parserBufferSize = parserBufferSize;
+    this.maxSize = Long.MAX_VALUE;
+  }
+
+  protected FileRepository newFileRepository() {
+    return repo;
+  }
+
+}
@@ -0,0 +1,43 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** A repository that reads uploaded data and throws it away, so only the parsing is measured. */
+public class DiscardingFileRepository implements FileRepository {
+
+  private static final FileProgress NO_PROGRESS = new FileProgress(null, 0, 0);
+  private final byte[] buffer = new byte[64 * 1024];
+  private long discarded;
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException {
+    for (int n; (n = data.read(buffer)) != -1;) {
+      discarded += n;
+    }
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+  }
+
+  public void saveError(Integer fileToken, String message) {
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    return NO_PROGRESS;
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  /** @return the bytes read since the last call */
+  public long clear() {
+    final long bytes = discarded;
+    discarded = 0;
+    return bytes;
+  }
+
+}
@@ -0,0 +1,57 @@
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A synthetic multipart/form-data body: <code>fields</code> small form fields followed by one
+ * file of <code>fileSize</code> pseudo-random bytes, the same for the same arguments.
+ */
+public class MultipartBody {
+
+  public static final String BOUNDARY = "----gwtuploadBenchBoundary7MA4YWxkTrZu0gW";
+
+  private final byte[] bytes;
+  private final int fileSize;
+
+  public MultipartBody(int fileSize, int fields) {
+    this.fileSize = fileSize;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize + 256 * (fields + 1));
+    try {
+      for (int i = 0; i < fields; i++) {
+        out.write(ascii("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"field" + i + "\"\r\n\r\nvalue " + i + "\r\n"));
+      }
+      out.write(ascii("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+          + "Content-Type: application/octet-stream\r\n\r\n"));
+      final byte[] data = new byte[fileSize];
+      new Random(fileSize).nextBytes(data);
+      out.write(data);
+      out.write(ascii("\r\n--" + BOUNDARY + "--\r\n"));
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+    this.bytes = out.toByteArray();
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getFileSize() {
+    return fileSize;
+  }
+
+  public String getContentType() {
+    return "multipart/form-data; boundary=" + BOUNDARY;
+  }
+
+  private static byte[] ascii(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+}
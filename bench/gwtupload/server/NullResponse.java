@@ -0,0 +1,171 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/** A response that throws its body away, counting the bytes written. */
+public class NullResponse implements HttpServletResponse {
+
+  private long written;
+  private int status = SC_OK;
+  private String contentType;
+
+  private final ServletOutputStream out = new ServletOutputStream() {
+    public void write(int b) {
+      written++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      written += len;
+    }
+  };
+
+  /** @return the bytes of body written since the last call */
+  public long clear() {
+    final long bytes = written;
+    written = 0;
+    status = SC_OK;
+    return bytes;
+  }
+
+  public ServletOutputStream getOutputStream() {
+    return out;
+  }
+
+  public PrintWriter getWriter() {
+    return new PrintWriter(out);
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public void setStatus(int sc) {
+    status = sc;
+  }
+
+  @SuppressWarnings("deprecation")
+  public void setStatus(int sc, String sm) {
+    status = sc;
+  }
+
+  public void sendError(int sc) {
+    status = sc;
+  }
+
+  public void sendError(int sc, String msg) {
+    status = sc;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String type) {
+    contentType = type;
+  }
+
+  public void addCookie(Cookie cookie) {
+  }
+
+  public boolean containsHeader(String name) {
+    return false;
+  }
+
+  public String encodeURL(String url) {
+    return url;
+  }
+
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeUrl(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+
+  public void sendRedirect(String location) {
+    status = SC_FOUND;
+  }
+
+  public void setDateHeader(String name, long date) {
+  }
+
+  public void addDateHeader(String name, long date) {
+  }
+
+  public void setHeader(String name, String value) {
+  }
+
+  public void addHeader(String name, String value) {
+  }
+
+  public void setIntHeader(String name, int value) {
+  }
+
+  public void addIntHeader(String name, int value) {
+  }
+
+  public String getHeader(String name) {
+    return null;
+  }
+
+  public Collection<String> getHeaders(String name) {
+    return new ArrayList<String>();
+  }
+
+  public Collection<String> getHeaderNames() {
+    return new ArrayList<String>();
+  }
+
+  public String getCharacterEncoding() {
+    return "ISO-8859-1";
+  }
+
+  public void setCharacterEncoding(String charset) {
+  }
+
+  public void setContentLength(int len) {
+  }
+
+  public void setBufferSize(int size) {
+  }
+
+  public int getBufferSize() {
+    return 0;
+  }
+
+  public void flushBuffer() throws IOException {
+  }
+
+  public void resetBuffer() {
+  }
+
+  public boolean isCommitted() {
+    return false;
+  }
+
+  public void reset() {
+  }
+
+  public void setLocale(Locale loc) {
+  }
+
+  public Locale getLocale() {
+    return Locale.getDefault();
+  }
+
+}
@@ -0,0 +1,74 @@
+package gwtupload.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link UploadServlet#parsePostRequest} on bodies held in memory, with the
+ * commons-fileupload parser and with {@link MultipartStreamParser}. The file is read and
+ * thrown away, and the <code>fileBytes</code> counter gives the parsing rate in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+  @Param({ "1024", "1048576", "16777216" })
+  public int fileSize;
+
+  /** form fields before the file, plus the file */
+  @Param({ "1", "8" })
+  public int parts;
+
+  @Param({ "commons", "fast" })
+  public String parser;
+
+  private DiscardingFileRepository repo;
+  private BenchServlet servlet;
+  private BenchRequest request;
+  private NullResponse response;
+
+  /** Bytes of file parsed, reported per second. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long fileBytes;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      fileBytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    final MultipartBody body = new MultipartBody(fileSize, parts - 1);
+    repo = new DiscardingFileRepository();
+    servlet = new BenchServlet(repo, "fast".equals(parser) ? MultipartStreamParser.DEFAULT_BUFFER_SIZE : 0);
+    request = new BenchRequest().setParameter("fileToken", "1").setBody(body.getContentType(), body.getBytes());
+    response = new NullResponse();
+  }
+
+  @Benchmark
+  public void parse(Counters counters) throws Exception {
+    servlet.parsePostRequest(request, response);
+    counters.fileBytes += repo.clear();
+  }
+
+}
@@ -0,0 +1,162 @@
+package gwtupload.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link FileRepository} implementations under contention: uploads saving their progress while
+ * more status requests load it, batches of status loads, and stored files read back like
+ * <code>?show=</code> does. Every thread picks tokens at random among <code>uploads</code>
+ * uploads, each with a stored file of <code>fileSize</code> bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+  private static final int BATCH = 16;
+
+  @State(Scope.Benchmark)
+  public static class Repository {
+    @Param({ "memory", "writeBehind", "disk", "caching" })
+    public String kind;
+
+    @Param({ "1024" })
+    public int uploads;
+
+    @Param({ "4096" })
+    public int fileSize;
+
+    FileRepository repo;
+    private File directory;
+
+    @Setup
+    public void setUp() throws Exception {
+      if ("memory".equals(kind)) {
+        repo = new MemoryFileRepository(MemoryFileRepository.DEFAULT_TTL, Long.MAX_VALUE);
+      } else if ("writeBehind".equals(kind)) {
+        repo = new WriteBehindFileRepository(new MemoryFileRepository(MemoryFileRepository.DEFAULT_TTL, Long.MAX_VALUE), 100);
+      } else if ("disk".equals(kind)) {
+        repo = new DiskFileRepository(directory = newDirectory());
+      } else if ("caching".equals(kind)) {
+        repo = new CachingFileRepository(new DiskFileRepository(directory = newDirectory()), Long.MAX_VALUE, fileSize);
+      } else {
+        throw new IllegalArgumentException("Unknown repository " + kind);
+      }
+      final byte[] data = new byte[fileSize];
+      for (int i = 0; i < uploads; i++) {
+        repo.saveData(Integer.valueOf(i), "application/octet-stream", new ByteArrayInputStream(data), null);
+        repo.saveProgress(Integer.valueOf(i), fileSize, fileSize);
+      }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      if (repo instanceof Closeable) {
+        ((Closeable) repo).close();
+      }
+      if (directory != null) {
+        FileUtils.deleteDirectory(directory);
+      }
+    }
+
+    private static File newDirectory() throws IOException {
+      final File file = File.createTempFile("gwtupload-bench", "");
+      file.delete();
+      return file;
+    }
+  }
+
+  /** The tokens a thread works on, picked with a xorshift generator so it doesn't contend. */
+  @State(Scope.Thread)
+  public static class Tokens {
+    private int seed = (int) System.nanoTime() | 1;
+    private long bytes;
+
+    Integer next(int uploads) {
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      return Integer.valueOf((seed & Integer.MAX_VALUE) % uploads);
+    }
+
+    List<Integer> next(int uploads, int count) {
+      final List<Integer> tokens = new ArrayList<Integer>(count);
+      for (int i = 0; i < count; i++) {
+        tokens.add(next(uploads));
+      }
+      return tokens;
+    }
+  }
+
+  @Benchmark
+  @Group("progress")
+  @GroupThreads(1)
+  public void saveProgress(Repository r, Tokens t) {
+    r.repo.saveProgress(t.next(r.uploads), t.bytes++ % r.fileSize, r.fileSize);
+  }
+
+  @Benchmark
+  @Group("progress")
+  @GroupThreads(3)
+  public FileProgress loadProgress(Repository r, Tokens t) {
+    return r.repo.loadProgress(t.next(r.uploads));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Map<Integer, FileProgress> loadProgressBatch(Repository r, Tokens t) {
+    return ((BulkFileRepository) r.repo).loadProgress(t.next(r.uploads, BATCH));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void loadData(Repository r, Tokens t, final Blackhole bh) throws IOException {
+    if (!(r.repo instanceof RangedFileRepository)) {
+      r.repo.sendData(t.next(r.uploads), new NullResponse());
+      return;
+    }
+    final StoredData data = ((RangedFileRepository) r.repo).loadData(t.next(r.uploads), 0);
+    try {
+      data.writeTo(0, data.getSize(), new OutputStream() {
+        public void write(int b) {
+          bh.consume(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+          bh.consume(b);
+        }
+      });
+    } finally {
+      data.close();
+    }
+  }
+
+}
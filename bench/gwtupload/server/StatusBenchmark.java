@@ -0,0 +1,77 @@
+package gwtupload.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of answering a status request once the progress is loaded: building the status with
+ * {@link UploadServlet#getUploadStatus}, sending it with {@link UploadServlet#renderXmlResponse},
+ * and both at once with {@link UploadServlet#renderStatusResponse}. Run with <code>-prof gc</code>
+ * to see the bytes allocated per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusBenchmark {
+
+  private static final Integer TOKEN = Integer.valueOf(123456789);
+
+  @Param({ "running", "finished", "error" })
+  public String state;
+
+  @Param({ "xml", "json" })
+  public String format;
+
+  private BenchServlet servlet;
+  private BenchRequest request;
+  private NullResponse response;
+  private FileProgress progress;
+  private String status;
+
+  @Setup
+  public void setUp() {
+    servlet = new BenchServlet(new MemoryFileRepository(), 0);
+    request = new BenchRequest().setParameter("status", TOKEN.toString()).setParameter("format", format);
+    response = new NullResponse();
+    if ("running".equals(state)) {
+      progress = new FileProgress(null, 3 * 1024 * 1024 + 17, 10 * 1024 * 1024);
+    } else if ("finished".equals(state)) {
+      progress = new FileProgress(null, 10 * 1024 * 1024, 10 * 1024 * 1024);
+    } else {
+      progress = new FileProgress("The file is bigger than the 10485760 bytes allowed & <rejected>", 0, 20 * 1024 * 1024);
+    }
+    status = servlet.getUploadStatus(TOKEN, progress);
+  }
+
+  @Benchmark
+  public String getUploadStatus() {
+    return servlet.getUploadStatus(TOKEN, progress);
+  }
+
+  @Benchmark
+  public long renderXmlResponse() throws Exception {
+    servlet.renderXmlResponse(request, response, status);
+    return response.clear();
+  }
+
+  @Benchmark
+  public long renderStatusResponse() throws Exception {
+    servlet.renderStatusResponse(request, response, TOKEN, progress);
+    return response.clear();
+  }
+
+}
@@ -0,0 +1,75 @@
+package gwtupload.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one {@link UploadListener#update} call, made for every block the parser reads.
+ *
+ * The policies are: <code>none</code>, the client follows the progress itself;
+ * <code>adaptive</code>, the default, which saves rarely; <code>always</code>, a save on every
+ * call. Cancels are checked through a {@link CancellationRegistry} handle, or by loading the
+ * progress from the repository when there is no registry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UploadListenerBenchmark {
+
+  private static final long TOTAL_BYTES = 1L << 50; // never reached
+  private static final long BLOCK = 8192;
+  private static final Integer TOKEN = Integer.valueOf(1);
+
+  @Param({ "none", "adaptive", "always" })
+  public String policy;
+
+  @Param({ "registry", "repository" })
+  public String cancellation;
+
+  private UploadListener listener;
+  private long currentBytes;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    final ProgressSavePolicy savePolicy;
+    if ("adaptive".equals(policy)) {
+      savePolicy = new AdaptiveSavePolicy();
+    } else if ("always".equals(policy)) {
+      savePolicy = new ProgressSavePolicy() {
+        public boolean shouldSave(long elapsedNanos, long savedBytes, long currentBytes, long totalBytes) {
+          return true;
+        }
+
+        public void saved(long latencyNanos) {
+        }
+      };
+    } else {
+      savePolicy = null;
+    }
+    final CancellationRegistry.Handle handle = "registry".equals(cancellation) ? new CancellationRegistry().register(TOKEN) : null;
+    listener = new UploadListener(new MemoryFileRepository(), TOKEN, savePolicy, handle);
+    currentBytes = 0;
+  }
+
+  @Benchmark
+  public void update() {
+    currentBytes += BLOCK;
+    listener.update(currentBytes, TOTAL_BYTES, 0);
+  }
+
+}
@@ -0,0 +1,67 @@
+package gwtupload.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in microseconds, counted in buckets 1/16 of a power of two wide, so any number of
+ * samples takes the same memory and the percentiles are within about 6% of the real ones.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKETS = 16;
+  private static final int SUB_BITS = 4;
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long micros) {
+    counts.incrementAndGet(bucket(Math.max(0, micros)));
+    for (long m = max.get(); micros > m && !max.compareAndSet(m, micros); m = max.get()) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /** @return the latency that <code>percent</code> of the samples don't exceed, 0 without samples */
+  public long getPercentile(double percent) {
+    final long count = getCount();
+    final long rank = (long) Math.ceil(count * percent / 100);
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank && seen > 0) {
+        return Math.min(max.get(), lowest(i + 1) - 1);
+      }
+    }
+    return 0;
+  }
+
+  private static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) (micros >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+  }
+
+  /** @return the lowest latency counted in a bucket */
+  private static long lowest(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+  }
+
+}
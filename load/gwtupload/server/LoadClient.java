@@ -0,0 +1,231 @@
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated browser. Each round it takes a token, posts a file at the speed of its link
+ * while another thread polls the status, and downloads the file with <code>?show=</code> once
+ * the post is answered OK. Like the GWT client, it takes the post response as the final status.
+ *
+ * Uploads refused with 503 are sent again after the Retry-After delay, like the GWT client does.
+ */
+public class LoadClient implements Runnable {
+
+  private static final String BOUNDARY = "----gwtuploadLoadBoundary";
+  private static final int BLOCK = 8192;
+  private static final int MAX_REFUSALS = 8;
+  private static final byte[] DATA = new byte[64 * 1024];
+  static {
+    new Random(1).nextBytes(DATA);
+  }
+
+  private final LoadTest test;
+  private final long linkSpeed;
+  private final long startDelay;
+  private final Random random;
+
+  /**
+   * @param linkSpeed bytes per second of the upload, 0 or less for no limit
+   * @param startDelay milliseconds to wait before the first round
+   */
+  public LoadClient(LoadTest test, long linkSpeed, long startDelay, long seed) {
+    this.test = test;
+    this.linkSpeed = linkSpeed;
+    this.startDelay = startDelay;
+    this.random = new Random(seed);
+  }
+
+  public void run() {
+    sleep(startDelay);
+    for (int round = 0; round < test.getRounds(); round++) {
+      final Integer fileToken = test.nextToken();
+      final long size = test.nextFileSize(random);
+      try {
+        if (upload(fileToken, size)) {
+          show(fileToken, size);
+        }
+      } catch (IOException e) {
+        test.error(e.getClass().getSimpleName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /** @return true if the upload finished OK */
+  private boolean upload(final Integer fileToken, long size) throws IOException {
+    final Poller poller = new Poller(fileToken);
+    test.getPollers().schedule(poller, test.getPollInterval(), TimeUnit.MILLISECONDS);
+    try {
+      for (int refusals = 0;; refusals++) {
+        final long start = System.nanoTime();
+        final HttpURLConnection conn = post(fileToken, size);
+        final int code = conn.getResponseCode();
+        final String body = read(conn);
+        if (code == HttpURLConnection.HTTP_UNAVAILABLE && refusals < MAX_REFUSALS) {
+          test.refused();
+          final String retry = conn.getHeaderField("Retry-After");
+          sleep(1000L * (retry != null ? Integer.parseInt(retry.trim()) : 1) + random.nextInt(500));
+          continue;
+        }
+        test.getUploadLatency().record((System.nanoTime() - start) / 1000);
+        if (code != HttpURLConnection.HTTP_OK || body.indexOf("<finished>OK</finished>") < 0) {
+          test.error("upload " + code + ": " + summary(body));
+          return false;
+        }
+        test.uploaded(size);
+        return true;
+      }
+    } finally {
+      poller.done = true;
+    }
+  }
+
+  private HttpURLConnection post(Integer fileToken, long size) throws IOException {
+    final byte[] head = ascii("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+        + "Content-Type: application/octet-stream\r\n\r\n");
+    final byte[] tail = ascii("\r\n--" + BOUNDARY + "--\r\n");
+    final HttpURLConnection conn = open("fileToken=" + fileToken);
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+    conn.setFixedLengthStreamingMode(head.length + size + tail.length);
+    final TokenBucket link = linkSpeed > 0 ? new TokenBucket(linkSpeed, BLOCK) : null;
+    final OutputStream out = conn.getOutputStream();
+    try {
+      out.write(head);
+      for (long sent = 0; sent < size;) {
+        final int n = (int) Math.min(BLOCK, size - sent);
+        if (link != null) {
+          LockSupport.parkNanos(link.reserve(n));
+        }
+        out.write(DATA, (int) (sent % (DATA.length - BLOCK)), n);
+        sent += n;
+      }
+      out.write(tail);
+    } finally {
+      out.close();
+    }
+    return conn;
+  }
+
+  private void show(Integer fileToken, long size) throws IOException {
+    final long start = System.nanoTime();
+    final HttpURLConnection conn = open("show=" + fileToken);
+    final int code = conn.getResponseCode();
+    long received = 0;
+    final InputStream in = code == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+    if (in != null) {
+      try {
+        final byte[] buffer = new byte[BLOCK];
+        for (int n; (n = in.read(buffer)) != -1;) {
+          received += n;
+        }
+      } finally {
+        in.close();
+      }
+    }
+    test.getShowLatency().record((System.nanoTime() - start) / 1000);
+    if (code != HttpURLConnection.HTTP_OK || received != size) {
+      test.error("show " + code + (code == HttpURLConnection.HTTP_OK ? ": wrong size" : ""));
+    }
+  }
+
+  private String status(Integer fileToken) throws IOException {
+    final long start = System.nanoTime();
+    final HttpURLConnection conn = open("status=" + fileToken);
+    conn.getResponseCode();
+    final String body = read(conn);
+    test.getStatusLatency().record((System.nanoTime() - start) / 1000);
+    return body;
+  }
+
+  private HttpURLConnection open(String query) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection) new URL(test.getUrl() + "?" + query).openConnection();
+    conn.setConnectTimeout(30000);
+    conn.setReadTimeout(120000);
+    return conn;
+  }
+
+  /** Reads the whole body, even of an error, so the connection can be kept alive. */
+  private static String read(HttpURLConnection conn) throws IOException {
+    InputStream in;
+    try {
+      in = conn.getInputStream();
+    } catch (IOException e) {
+      in = conn.getErrorStream();
+    }
+    if (in == null) {
+      return "";
+    }
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      for (int n; (n = in.read(buffer)) != -1;) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString("ISO-8859-1");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String summary(String body) {
+    final int start = body.indexOf("<response>");
+    final String response = start >= 0 ? body.substring(start + "<response>".length()) : body;
+    return response.length() > 200 ? response.substring(0, 200) : response.trim();
+  }
+
+  private static byte[] ascii(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Polls the status while the upload runs, from the shared poller threads. */
+  private class Poller implements Runnable {
+    private final Integer fileToken;
+    volatile boolean done;
+
+    Poller(Integer fileToken) {
+      this.fileToken = fileToken;
+    }
+
+    public void run() {
+      if (done) {
+        return;
+      }
+      try {
+        final String body = status(fileToken);
+        if (body.indexOf("<finished>") >= 0 || body.indexOf("<error>") >= 0) {
+          return;
+        }
+      } catch (IOException e) {
+        test.error("status: " + e.getMessage());
+        return;
+      }
+      if (!done) {
+        final ScheduledExecutorService pollers = test.getPollers();
+        pollers.schedule(this, test.getPollInterval(), TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,21 @@
+package gwtupload.server;
+
+/** The servlet under load, with the repository chosen by {@link LoadTest}. */
+public class LoadServlet extends UploadServlet {
+
+  private static final long serialVersionUID = 1L;
+  private final transient FileRepository loadRepo;
+
+  public LoadServlet(FileRepository repo) {
+    this.loadRepo = repo;
+  }
+
+  protected FileRepository newFileRepository() {
+    return loadRepo;
+  }
+
+  protected CancellationNotifier newCancellationNotifier() {
+    return null; // a single node
+  }
+
+}
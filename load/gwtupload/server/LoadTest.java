@@ -0,0 +1,289 @@
+package gwtupload.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Boots {@link UploadServlet} in an embedded Jetty on localhost and drives it with
+ * {@link LoadClient}s, then reports throughput, latency percentiles, heap and GC figures.
+ *
+ * Options are given as <code>--name=value</code>:
+ * <ul>
+ * <li>clients: simulated browsers, each with its own thread (200)</li>
+ * <li>rounds: uploads done by each client (3)</li>
+ * <li>size: file size, like 100k, or a range like 10k-5m where sizes are spread evenly per order of magnitude (10k-1m)</li>
+ * <li>speeds: upload link speeds in bytes per second, given to the clients in turn, 0 for no limit (256k,1m,0)</li>
+ * <li>poll: milliseconds between status requests (500)</li>
+ * <li>ramp: milliseconds over which the clients start (5000)</li>
+ * <li>repository: memory, disk, writeBehind, caching or dedup (memory)</li>
+ * <li>serverThreads: threads of the container (500)</li>
+ * <li>pollThreads: threads sending the status requests (clients / 4)</li>
+ * <li>port: 0 for any free port (0)</li>
+ * <li>any other option is a context parameter of the servlet, like --fastParser=true</li>
+ * </ul>
+ *
+ * The clients run in the same JVM as the server, so the heap and GC figures include both.
+ */
+public class LoadTest {
+
+  private final Map<String, String> options;
+  private final int clients;
+  private final int rounds;
+  private final long minSize;
+  private final long maxSize;
+  private final long[] speeds;
+  private final long pollInterval;
+  private final AtomicInteger tokens = new AtomicInteger();
+  private final AtomicLong uploads = new AtomicLong();
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final AtomicLong refusals = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+  private final LatencyHistogram statusLatency = new LatencyHistogram();
+  private final LatencyHistogram uploadLatency = new LatencyHistogram();
+  private final LatencyHistogram showLatency = new LatencyHistogram();
+  private ScheduledExecutorService pollers;
+  private String url;
+
+  public LoadTest(Map<String, String> options) {
+    this.options = new LinkedHashMap<String, String>(options);
+    this.clients = Integer.parseInt(option("clients", "200"));
+    this.rounds = Integer.parseInt(option("rounds", "3"));
+    final String size = option("size", "10k-1m");
+    final int dash = size.indexOf('-');
+    this.minSize = parseBytes(dash < 0 ? size : size.substring(0, dash));
+    this.maxSize = parseBytes(dash < 0 ? size : size.substring(dash + 1));
+    final String[] links = option("speeds", "256k,1m,0").split(",");
+    this.speeds = new long[links.length];
+    for (int i = 0; i < links.length; i++) {
+      speeds[i] = parseBytes(links[i]);
+    }
+    this.pollInterval = Long.parseLong(option("poll", "500"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new LinkedHashMap<String, String>();
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        System.err.println("Usage: LoadTest [--name=value]..., see the documentation of the class for the options");
+        System.exit(1);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    new LoadTest(options).run();
+  }
+
+  public void run() throws Exception {
+    final File directory = new File(System.getProperty("java.io.tmpdir"), "gwtupload-load-" + System.currentTimeMillis());
+    final FileRepository repo = newRepository(option("repository", "memory"), directory);
+    final Server server = new Server(Integer.parseInt(option("port", "0")));
+    server.setThreadPool(new QueuedThreadPool(Integer.parseInt(option("serverThreads", "500"))));
+    final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    context.setContextPath("/");
+    // room for the biggest file and the multipart headers
+    context.setInitParameter("maxSize", String.valueOf(maxSize + 1024));
+    for (Map.Entry<String, String> e : options.entrySet()) {
+      context.setInitParameter(e.getKey(), e.getValue());
+    }
+    final ServletHolder holder = new ServletHolder(new LoadServlet(repo));
+    holder.setAsyncSupported(true);
+    context.addServlet(holder, "/upload");
+    server.setHandler(context);
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/upload";
+    System.setProperty("http.maxConnections", String.valueOf(clients));
+    pollers = Executors.newScheduledThreadPool(Integer.parseInt(option("pollThreads", String.valueOf(Math.max(1, clients / 4)))),
+        new DaemonThreadFactory("load-poller"));
+
+    System.out.println("Load test of " + url + " with " + options);
+    final long gcCount = getGcCount();
+    final long gcTime = getGcTime();
+    final long ramp = Long.parseLong(option("ramp", "5000"));
+    final List<Thread> threads = new ArrayList<Thread>(clients);
+    final long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      final Thread thread = new Thread(new LoadClient(this, speeds[i % speeds.length], ramp * i / clients, i), "load-client-" + i);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+
+    report(seconds, getGcCount() - gcCount, getGcTime() - gcTime);
+    pollers.shutdownNow();
+    server.stop();
+    if (repo instanceof Closeable) {
+      ((Closeable) repo).close();
+    }
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private void report(double seconds, long gcCount, long gcTime) {
+    System.out.println();
+    System.out.println(String.format("%d uploads of %.1f MB in %.1f s: %.1f uploads/s, %.2f MB/s, %d refused, %d errors", uploads.get(),
+        uploadedBytes.get() / 1e6, seconds, uploads.get() / seconds, uploadedBytes.get() / 1e6 / seconds, refusals.get(), getErrors()));
+    System.out.println(String.format("%-8s %10s %10s %10s %10s", "ms", "count", "p50", "p99", "max"));
+    report("status", statusLatency);
+    report("upload", uploadLatency);
+    report("show", showLatency);
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    System.out.println(String.format("heap: %.1f MB used, %.1f MB peak, %.1f MB max; gc: %d collections, %d ms", //
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1e6, peak / 1e6, Runtime.getRuntime().maxMemory() / 1e6, gcCount, gcTime));
+    for (Map.Entry<String, AtomicLong> e : errors.entrySet()) {
+      System.out.println(e.getValue() + " x " + e.getKey());
+    }
+  }
+
+  private static void report(String name, LatencyHistogram latency) {
+    System.out.println(String.format("%-8s %10d %10.1f %10.1f %10.1f", name, latency.getCount(), latency.getPercentile(50) / 1e3,
+        latency.getPercentile(99) / 1e3, latency.getMax() / 1e3));
+  }
+
+  private FileRepository newRepository(String kind, File directory) throws IOException {
+    final long memory = Runtime.getRuntime().maxMemory() / 4;
+    if ("memory".equals(kind)) {
+      return new MemoryFileRepository(MemoryFileRepository.DEFAULT_TTL, memory);
+    } else if ("disk".equals(kind)) {
+      return new DiskFileRepository(directory);
+    } else if ("writeBehind".equals(kind)) {
+      return new WriteBehindFileRepository(new DiskFileRepository(directory), 100);
+    } else if ("caching".equals(kind)) {
+      return new CachingFileRepository(new DiskFileRepository(directory), memory, 1024 * 1024);
+    } else if ("dedup".equals(kind)) {
+      return new DeduplicatingFileRepository(new DiskFileRepository(directory));
+    }
+    throw new IllegalArgumentException("Unknown repository " + kind);
+  }
+
+  /** @return the value of an option, removed from the ones passed to the servlet */
+  private String option(String name, String defaultValue) {
+    final String value = options.remove(name);
+    return value != null ? value : defaultValue;
+  }
+
+  /** @return bytes, from a number with an optional k, m or g suffix */
+  static long parseBytes(String value) {
+    final String v = value.trim().toLowerCase();
+    final char unit = v.length() > 0 ? v.charAt(v.length() - 1) : ' ';
+    final long multiplier = unit == 'k' ? 1024 : unit == 'm' ? 1024 * 1024 : unit == 'g' ? 1024 * 1024 * 1024 : 1;
+    return Long.parseLong(multiplier > 1 ? v.substring(0, v.length() - 1) : v) * multiplier;
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  private long getErrors() {
+    long count = 0;
+    for (AtomicLong n : errors.values()) {
+      count += n.get();
+    }
+    return count;
+  }
+
+  // called by the clients
+
+  Integer nextToken() {
+    return Integer.valueOf(tokens.incrementAndGet());
+  }
+
+  /** @return a size between the bounds, as likely in each order of magnitude */
+  long nextFileSize(Random random) {
+    if (minSize >= maxSize) {
+      return maxSize;
+    }
+    final double low = Math.log(Math.max(1, minSize));
+    return Math.round(Math.exp(low + random.nextDouble() * (Math.log(maxSize) - low)));
+  }
+
+  void uploaded(long bytes) {
+    uploads.incrementAndGet();
+    uploadedBytes.addAndGet(bytes);
+  }
+
+  void refused() {
+    refusals.incrementAndGet();
+  }
+
+  void error(String message) {
+    AtomicLong count = errors.get(message);
+    if (count == null) {
+      final AtomicLong created = new AtomicLong();
+      count = errors.putIfAbsent(message, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  int getRounds() {
+    return rounds;
+  }
+
+  long getPollInterval() {
+    return pollInterval;
+  }
+
+  String getUrl() {
+    return url;
+  }
+
+  ScheduledExecutorService getPollers() {
+    return pollers;
+  }
+
+  LatencyHistogram getStatusLatency() {
+    return statusLatency;
+  }
+
+  LatencyHistogram getUploadLatency() {
+    return uploadLatency;
+  }
+
+  LatencyHistogram getShowLatency() {
+    return showLatency;
+  }
+
+}
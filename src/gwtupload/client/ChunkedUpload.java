@@ -0,0 +1,190 @@
+package gwtupload.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.user.client.Element;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.xml.client.XMLParser;
+
+/**
+ * <p>
+ * Sends the file selected in an uploader as slices of a Blob, several at once, with XMLHttpRequest level 2.
+ * </p>
+ *
+ * Each chunk is a POST with a <code>Content-Range</code> header that the server writes at its offset.
+ * A failed chunk is sent again on its own after a pause, and the progress of the chunks in flight
+ * is added to the bytes already acknowledged and reported to the uploader. A chunk refused by
+ * a busy server is sent again after the time it asks for, longer each time.
+ */
+class ChunkedUpload implements UploadTransport {
+
+  private static final int MAX_RETRIES = 3;
+  private static final int RETRY_DELAY = 1000;
+  private static final int MAX_BUSY_RETRIES = 8;
+
+  private final Uploader uploader;
+  private final String url;
+  private final JavaScriptObject file;
+  private final double size;
+  private final int chunkSize;
+  private final int chunks;
+  private final int concurrency;
+  private final int[] attempts;
+  private final int[] busyRetries;
+  private final double[] loaded;
+  private final JavaScriptObject[] requests;
+  private int nextChunk = 0;
+  private double acknowledged = 0;
+  private boolean stopped = false;
+
+  /**
+   * Returns the file selected in a file input, or null if the browser can't send it in slices
+   */
+  static native JavaScriptObject getFile(Element input) /*-{
+    if (!$wnd.XMLHttpRequest || !$wnd.Blob || !input.files || input.files.length == 0)
+      return null;
+    var f = input.files[0];
+    return f.size > 0 && (f.slice || f.webkitSlice || f.mozSlice) && 'upload' in new $wnd.XMLHttpRequest() ? f : null;
+  }-*/;
+
+  ChunkedUpload(Uploader uploader, String url, JavaScriptObject file, int chunkSize, int concurrency) {
+    this.uploader = uploader;
+    this.url = url;
+    this.file = file;
+    this.size = getSize(file);
+    this.chunkSize = chunkSize;
+    this.chunks = Math.max(1, (int) Math.ceil(size / chunkSize));
+    this.concurrency = concurrency;
+    this.attempts = new int[chunks];
+    this.busyRetries = new int[chunks];
+    this.loaded = new double[chunks];
+    this.requests = new JavaScriptObject[chunks];
+  }
+
+  /**
+   * Sends the first chunks, the rest go as the previous ones are acknowledged
+   */
+  public void start() {
+    for (int i = 0; i < concurrency; i++) {
+      sendNext();
+    }
+  }
+
+  public void abort() {
+    stopped = true;
+    for (int i = 0; i < chunks; i++) {
+      if (requests[i] != null) {
+        abortRequest(requests[i]);
+        requests[i] = null;
+      }
+    }
+  }
+
+  private void sendNext() {
+    if (!stopped && nextChunk < chunks) {
+      send(nextChunk++);
+    }
+  }
+
+  private void send(int chunk) {
+    double start = (double) chunk * chunkSize;
+    double end = Math.min(size, start + chunkSize);
+    loaded[chunk] = 0;
+    requests[chunk] = sendChunk(url, file, chunk, start, end, size);
+  }
+
+  private void onChunkProgress(int chunk, double bytes) {
+    if (stopped)
+      return;
+    loaded[chunk] = bytes;
+    double total = acknowledged;
+    for (int i = 0; i < chunks; i++) {
+      total += loaded[i];
+    }
+    uploader.onTransportProgress(Math.min(total, size), size);
+  }
+
+  private void onChunkDone(final int chunk, int status, String responseText) {
+    requests[chunk] = null;
+    if (stopped)
+      return;
+    loaded[chunk] = 0;
+
+    ServerStatus response = null;
+    String error = null;
+    if (status == 200 || status == 503) {
+      try {
+        response = new ServerStatus.Xml(XMLParser.parse(responseText).getDocumentElement());
+        error = response.get("error");
+      } catch (Exception e) {
+        error = e.getMessage();
+      }
+    } else {
+      error = "HTTP " + status;
+    }
+
+    if (response != null && response.get(Uploader.TAG_WAIT) != null) {
+      if (++busyRetries[chunk] > MAX_BUSY_RETRIES) {
+        abort();
+        uploader.onTransportError("HTTP " + status);
+      } else {
+        resend(chunk, Uploader.getRetryDelay(response.get(Uploader.TAG_WAIT), busyRetries[chunk]));
+      }
+    } else if (response != null && response.get(Uploader.TAG_CANCELED) != null) {
+      stopped = true;
+      uploader.onTransportFinished(responseText);
+    } else if (error != null) {
+      if (++attempts[chunk] > MAX_RETRIES) {
+        abort();
+        uploader.onTransportError(error);
+      } else {
+        resend(chunk, RETRY_DELAY * attempts[chunk]);
+      }
+    } else if (response.get(Uploader.TAG_FINISHED) != null) {
+      stopped = true;
+      uploader.onTransportFinished(responseText);
+    } else {
+      acknowledged += Math.min(size, ((double) chunk + 1) * chunkSize) - (double) chunk * chunkSize;
+      onChunkProgress(chunk, 0);
+      sendNext();
+    }
+  }
+
+  private void resend(final int chunk, int delay) {
+    new Timer() {
+      public void run() {
+        if (!stopped)
+          send(chunk);
+      }
+    }.schedule(delay);
+  }
+
+  private static native double getSize(JavaScriptObject file) /*-{
+    return file.size;
+  }-*/;
+
+  private native JavaScriptObject sendChunk(String url, JavaScriptObject file, int chunk, double start, double end, double size) /*-{
+    var self = this;
+    var slice = file.slice || file.webkitSlice || file.mozSlice;
+    var xhr = new $wnd.XMLHttpRequest();
+    xhr.open("POST", url, true);
+    xhr.setRequestHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+    xhr.setRequestHeader("Content-Type", file.type || "application/octet-stream");
+    xhr.upload.onprogress = $entry(function(e) {
+      self.@gwtupload.client.ChunkedUpload::onChunkProgress(ID)(chunk, e.loaded);
+    });
+    xhr.onreadystatechange = $entry(function() {
+      if (xhr.readyState == 4) {
+        xhr.onreadystatechange = null;
+        self.@gwtupload.client.ChunkedUpload::onChunkDone(IILjava/lang/String;)(chunk, xhr.status, xhr.responseText);
+      }
+    });
+    xhr.send(slice.call(file, start, end));
+    return xhr;
+  }-*/;
+
+  private static native void abortRequest(JavaScriptObject xhr) /*-{
+    xhr.onreadystatechange = null;
+    xhr.abort();
+  }-*/;
+
+}
@@ -0,0 +1,80 @@
+package gwtupload.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.user.client.Element;
+
+/**
+ * <p>
+ * Sends the upload form with XMLHttpRequest level 2 and FormData, following the progress with the
+ * <code>upload.onprogress</code> events of the browser.
+ * </p>
+ */
+class FormDataUpload implements UploadTransport {
+
+  private final Uploader uploader;
+  private final String url;
+  private final Element form;
+  private JavaScriptObject request;
+
+  /**
+   * Returns true if the browser can send a form with FormData and report its upload progress
+   */
+  static native boolean isSupported() /*-{
+    return !!($wnd.XMLHttpRequest && $wnd.FormData && 'upload' in new $wnd.XMLHttpRequest());
+  }-*/;
+
+  FormDataUpload(Uploader uploader, String url, Element form) {
+    this.uploader = uploader;
+    this.url = url;
+    this.form = form;
+  }
+
+  public void start() {
+    request = send(url, form);
+  }
+
+  public void abort() {
+    if (request != null) {
+      abortRequest(request);
+      request = null;
+    }
+  }
+
+  private void onProgress(double loaded, double total) {
+    uploader.onTransportProgress(loaded, total);
+  }
+
+  private void onDone(int status, String responseText) {
+    request = null;
+    if (status == 200 || status == 503 && responseText.indexOf("<wait>") >= 0) {
+      // a busy server tells the uploader when to send it again
+      uploader.onTransportFinished(responseText);
+    } else {
+      uploader.onTransportError("HTTP " + status);
+    }
+  }
+
+  private native JavaScriptObject send(String url, Element form) /*-{
+    var self = this;
+    var xhr = new $wnd.XMLHttpRequest();
+    xhr.open("POST", url, true);
+    xhr.upload.onprogress = $entry(function(e) {
+      if (e.lengthComputable)
+        self.@gwtupload.client.FormDataUpload::onProgress(DD)(e.loaded, e.total);
+    });
+    xhr.onreadystatechange = $entry(function() {
+      if (xhr.readyState == 4) {
+        xhr.onreadystatechange = null;
+        self.@gwtupload.client.FormDataUpload::onDone(ILjava/lang/String;)(xhr.status, xhr.responseText);
+      }
+    });
+    xhr.send(new $wnd.FormData(form));
+    return xhr;
+  }-*/;
+
+  private static native void abortRequest(JavaScriptObject xhr) /*-{
+    xhr.onreadystatechange = null;
+    xhr.abort();
+  }-*/;
+
+}
@@ -23,6 +23,7 @@ import com.google.gwt.event.shared.EventHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.ui.HasWidgets;
 import com.google.gwt.xml.client.Document;
+import com.google.gwt.xml.client.Element;
 import com.google.gwt.xml.client.Node;
 import com.google.gwt.xml.client.NodeList;
 
@@ -58,7 +59,20 @@ public interface IUploader extends HasJsData, HasWidgets {
       if (doc == null)
         return null;
       
-    	NodeList list = doc.getElementsByTagName(tag);
+    	return getXmlNodeValue(doc.getElementsByTagName(tag));
+    }
+
+    /**
+     * return the text content of a tag inside a xml element. 
+     */
+    public static String getXmlNodeValue(Element elem, String tag) {
+      if (elem == null)
+        return null;
+      
+      return getXmlNodeValue(elem.getElementsByTagName(tag));
+    }
+
+    private static String getXmlNodeValue(NodeList list) {
     	if (list.getLength() == 0)
     		return null;
     
@@ -0,0 +1,148 @@
+package gwtupload.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.user.client.Element;
+import com.google.gwt.xml.client.XMLParser;
+
+/**
+ * <p>
+ * Sends the SHA-256 digest and the size of the selected file before the file itself, and skips
+ * the transfer when the server already stores that content.
+ * </p>
+ *
+ * The digest is computed with the browser's WebCrypto, which works outside the UI thread. When
+ * the server doesn't know the content, or the digest can't be computed, the file is sent with
+ * the transport given.
+ */
+class InstantUpload implements UploadTransport {
+
+  static final String ALGORITHM = "SHA-256";
+
+  private final Uploader uploader;
+  private final String url;
+  private final JavaScriptObject file;
+  private final UploadTransport transport;
+  private Request request;
+  private boolean sending = false;
+  private boolean stopped = false;
+
+  /**
+   * Returns the file selected in a file input, or null if the browser can't compute its digest
+   * or it is bigger than <code>maxSize</code> bytes
+   */
+  static native JavaScriptObject getFile(Element input, double maxSize) /*-{
+    var crypto = $wnd.crypto || $wnd.msCrypto;
+    if (!crypto || !crypto.subtle || !$wnd.FileReader || !input.files || input.files.length == 0)
+      return null;
+    var f = input.files[0];
+    return f.size <= maxSize ? f : null;
+  }-*/;
+
+  /**
+   * @param url the servlet url with the token, the digest and size are added to it
+   * @param transport sends the file when the server hasn't got it
+   */
+  InstantUpload(Uploader uploader, String url, JavaScriptObject file, UploadTransport transport) {
+    this.uploader = uploader;
+    this.url = url;
+    this.file = file;
+    this.transport = transport;
+  }
+
+  public void start() {
+    digest(file);
+  }
+
+  public void abort() {
+    stopped = true;
+    if (request != null) {
+      request.cancel();
+      request = null;
+    }
+    if (sending) {
+      transport.abort();
+    }
+  }
+
+  private void onDigest(String digest) {
+    if (stopped) {
+      return;
+    } else if (digest == null) {
+      send();
+      return;
+    }
+    RequestBuilder reqBuilder = new RequestBuilder(RequestBuilder.GET, url + "&digest=" + digest + "&size=" + (long) getSize(file)
+        + "&algorithm=" + ALGORITHM);
+    try {
+      request = reqBuilder.sendRequest("digest", new RequestCallback() {
+        public void onError(Request req, Throwable exception) {
+          request = null;
+          send();
+        }
+
+        public void onResponseReceived(Request req, Response response) {
+          request = null;
+          if (stopped) {
+            return;
+          }
+          try {
+            ServerStatus status = new ServerStatus.Xml(XMLParser.parse(response.getText()).getDocumentElement());
+            if (status.get(Uploader.TAG_FINISHED) != null) {
+              stopped = true;
+              uploader.onTransportFinished(response.getText());
+              return;
+            }
+          } catch (Exception e) {
+            // not a status, send the file
+          }
+          send();
+        }
+      });
+    } catch (Exception e) {
+      send();
+    }
+  }
+
+  private void send() {
+    if (!stopped && !sending) {
+      sending = true;
+      transport.start();
+    }
+  }
+
+  private static native double getSize(JavaScriptObject file) /*-{
+    return file.size;
+  }-*/;
+
+  private native void digest(JavaScriptObject file) /*-{
+    var self = this;
+    var crypto = $wnd.crypto || $wnd.msCrypto;
+    var done = $entry(function(hex) {
+      self.@gwtupload.client.InstantUpload::onDigest(Ljava/lang/String;)(hex);
+    });
+    var reader = new $wnd.FileReader();
+    reader.onload = function() {
+      try {
+        crypto.subtle.digest(@gwtupload.client.InstantUpload::ALGORITHM, reader.result).then(function(buffer) {
+          var bytes = new $wnd.Uint8Array(buffer), hex = "";
+          for (var i = 0; i < bytes.length; i++)
+            hex += (bytes[i] < 16 ? "0" : "") + bytes[i].toString(16);
+          done(hex);
+        }, function() {
+          done(null);
+        });
+      } catch (e) {
+        done(null);
+      }
+    };
+    reader.onerror = function() {
+      done(null);
+    };
+    reader.readAsArrayBuffer(file);
+  }-*/;
+
+}
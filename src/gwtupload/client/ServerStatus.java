@@ -0,0 +1,76 @@
+package gwtupload.client;
+
+import gwtupload.client.IUploader.Utils;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.xml.client.Element;
+
+/**
+ * <p>
+ * The values of a status response from the server, in xml or json format.
+ * </p>
+ */
+interface ServerStatus {
+
+  /**
+   * return the value of a field, or null if it isn't in the response
+   */
+  String get(String name);
+
+  /**
+   * A status received in xml, where each field is a tag.
+   */
+  class Xml implements ServerStatus {
+    private final Element element;
+
+    Xml(Element element) {
+      this.element = element;
+    }
+
+    public String get(String name) {
+      return Utils.getXmlNodeValue(element, name);
+    }
+
+    public String toString() {
+      return element.toString();
+    }
+  }
+
+  /**
+   * A status received in json, where each field is a property.
+   */
+  class Json implements ServerStatus {
+    private final JavaScriptObject object;
+
+    Json(JavaScriptObject object) {
+      this.object = object;
+    }
+
+    /**
+     * Parses a json text, with the browser's native parser when there is one
+     */
+    static native JavaScriptObject parse(String text) /*-{
+      if ($wnd.JSON && $wnd.JSON.parse)
+        return $wnd.JSON.parse(text);
+      return eval('(' + text + ')');
+    }-*/;
+
+    /**
+     * return the object of a property, or null if it isn't there 
+     */
+    static native JavaScriptObject getObject(JavaScriptObject o, String name) /*-{
+      var v = o ? o[name] : null;
+      return v == null ? null : v;
+    }-*/;
+
+    public String get(String name) {
+      return getValue(object, name);
+    }
+
+    private static native String getValue(JavaScriptObject o, String name) /*-{
+      var v = o ? o[name] : null;
+      return v == null ? null : String(v);
+    }-*/;
+  }
+
+}
@@ -0,0 +1,168 @@
+package gwtupload.client;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.xml.client.Element;
+import com.google.gwt.xml.client.NodeList;
+import com.google.gwt.xml.client.XMLParser;
+
+/**
+ * <p>
+ * Asks the server for the progress of several uploaders in a single request.
+ * </p>
+ * 
+ * There is one poller per servlet, shared by all the uploaders of the page that send their files 
+ * to it. It runs while any of them is uploading, sending one <code>statuses=</code> request per 
+ * interval and handing each uploader its part of the response. The server answers at most
+ * {@link #MAX_BATCH_TOKENS} tokens per request, so more uploaders take several requests.
+ */
+public class StatusPoller implements IsUpdateable {
+
+  private static final int DEFAULT_AJAX_TIMEOUT = 10000;
+  public static final int MAX_BATCH_TOKENS = 100;
+  private static final HashMap<String, StatusPoller> pollers = new HashMap<String, StatusPoller>();
+
+  private final String servletPath;
+  private final UpdateTimer timer;
+  private final Vector<Uploader> uploaders = new Vector<Uploader>();
+  private final boolean json;
+  private int waitingForResponses = 0;
+  private int requestsCounter = 0;
+
+  /**
+   * Returns the poller of a servlet, creating it the first time
+   */
+  public static StatusPoller get(String servletPath, int interval, boolean json) {
+    String path = servletPath.replaceAll("\\?.*$", "");
+    StatusPoller poller = pollers.get(path);
+    if (poller == null) {
+      poller = new StatusPoller(path, interval, json);
+      pollers.put(path, poller);
+    }
+    return poller;
+  }
+
+  private StatusPoller(String servletPath, int interval, boolean json) {
+    this.servletPath = servletPath;
+    this.timer = new UpdateTimer(this, interval);
+    this.json = json;
+  }
+
+  /**
+   * Starts asking for the progress of an uploader
+   */
+  public void add(Uploader uploader) {
+    if (uploaders.contains(uploader))
+      return;
+    uploaders.add(uploader);
+    if (uploaders.size() == 1)
+      timer.squeduleStart();
+  }
+
+  /**
+   * Stops asking for the progress of an uploader, the timer stops with the last one
+   */
+  public void remove(Uploader uploader) {
+    if (uploaders.remove(uploader) && uploaders.isEmpty())
+      timer.finish();
+  }
+
+  /* (non-Javadoc)
+   * @see gwtupload.client.IsUpdateable#update()
+   */
+  public void update() {
+    if (waitingForResponses > 0 || uploaders.isEmpty())
+      return;
+
+    String tokens = "";
+    int count = 0;
+    for (Uploader uploader : uploaders) {
+      if (uploader.getFileToken() == null)
+        continue;
+      tokens += (count > 0 ? "," : "") + uploader.getFileToken();
+      if (++count == MAX_BATCH_TOKENS) {
+        sendRequest(tokens);
+        tokens = "";
+        count = 0;
+      }
+    }
+    if (count > 0)
+      sendRequest(tokens);
+  }
+
+  private void sendRequest(String tokens) {
+    try {
+      waitingForResponses++;
+      // a different url each time, so IE doesn't return a cached response
+      String url = servletPath + "?statuses=" + tokens + (json ? "&format=json" : "&format=xml") + "&c=" + requestsCounter++ + "&random=" + Math.random();
+      RequestBuilder reqBuilder = new RequestBuilder(RequestBuilder.GET, url);
+      reqBuilder.setTimeoutMillis(DEFAULT_AJAX_TIMEOUT);
+      reqBuilder.sendRequest("get_statuses", onStatusesReceivedCallback);
+    } catch (RequestException e) {
+      waitingForResponses--;
+      GWT.log("GWTUpload: error asking for statuses", e);
+    }
+  }
+
+  private final RequestCallback onStatusesReceivedCallback = new RequestCallback() {
+    public void onError(Request request, Throwable exception) {
+      waitingForResponses--;
+      for (Uploader uploader : new Vector<Uploader>(uploaders)) {
+        uploader.onStatusError(exception);
+      }
+    }
+
+    public void onResponseReceived(Request request, Response response) {
+      waitingForResponses--;
+      if (json)
+        parseJsonStatuses(response.getText());
+      else
+        parseXmlStatuses(response.getText());
+    }
+  };
+
+  private void parseJsonStatuses(String text) {
+    JavaScriptObject statuses;
+    try {
+      statuses = ServerStatus.Json.getObject(ServerStatus.Json.parse(text), "statuses");
+    } catch (Exception e) {
+      GWT.log("GWTUpload: incorrect statuses response: " + text, e);
+      return;
+    }
+    // iterate over a copy, uploaders that finish remove themselves
+    for (Uploader uploader : new Vector<Uploader>(uploaders)) {
+      JavaScriptObject status = ServerStatus.Json.getObject(statuses, String.valueOf(uploader.getFileToken()));
+      if (status != null)
+        uploader.onStatusReceived(new ServerStatus.Json(status));
+    }
+  }
+
+  private void parseXmlStatuses(String text) {
+    NodeList statuses;
+    try {
+      statuses = XMLParser.parse(text).getElementsByTagName("status");
+    } catch (Exception e) {
+      GWT.log("GWTUpload: incorrect statuses response: " + text, e);
+      return;
+    }
+    // iterate over a copy, uploaders that finish remove themselves
+    for (Uploader uploader : new Vector<Uploader>(uploaders)) {
+      for (int i = 0; i < statuses.getLength(); i++) {
+        Element status = (Element) statuses.item(i);
+        if (String.valueOf(uploader.getFileToken()).equals(status.getAttribute("token"))) {
+          uploader.onStatusReceived(new ServerStatus.Xml(status));
+          break;
+        }
+      }
+    }
+  }
+
+}
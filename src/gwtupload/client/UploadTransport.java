@@ -0,0 +1,23 @@
+package gwtupload.client;
+
+/**
+ * <p>
+ * Sends the file of an uploader with XMLHttpRequest instead of submitting the form to the hidden iframe.
+ * </p>
+ * 
+ * The transport reports the progress to the uploader as the browser sends the bytes, so the server 
+ * isn't asked for the status, and hands it the xml response of the servlet when the upload is done.
+ */
+interface UploadTransport {
+
+  /**
+   * Starts sending the file
+   */
+  void start();
+
+  /**
+   * Stops the requests in flight, without notifying the uploader
+   */
+  void abort();
+
+}
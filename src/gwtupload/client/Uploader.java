@@ -34,6 +34,7 @@ import com.google.gwt.http.client.RequestCallback;
 import com.google.gwt.http.client.RequestException;
 import com.google.gwt.http.client.RequestTimeoutException;
 import com.google.gwt.http.client.Response;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.FlowPanel;
@@ -83,9 +84,9 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private Vector<IUploader.OnTokenRequestedHandler> onTokenRequestedHandlers = new Vector<IUploader.OnTokenRequestedHandler>();
 
   private static final String TAG_PERCENT = "percent";
-  private static final String TAG_FINISHED = "finished";
-  private static final String TAG_CANCELED = "cancelled";
-  private static final String TAG_WAIT = "wait";
+  static final String TAG_FINISHED = "finished";
+  static final String TAG_CANCELED = "cancelled";
+  static final String TAG_WAIT = "wait";
   private static final String TAG_TOTAL_BYTES = "totalBytes";
   private static final String TAG_CURRENT_BYTES = "currentBytes";
 
@@ -98,6 +99,16 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
 
   private static int uploadTimeout = DEFAULT_TIME_MAX_WITHOUT_RESPONSE;
   private static int statusInterval = DEFAULT_UPDATE_INTERVAL;
+  private static int statusWait = 0;
+  private static boolean statusEvents = false;
+  private static boolean statusBatching = false;
+  private static boolean statusJson = false;
+  private static int chunkSize = 0;
+  private static int chunkConcurrency = 1;
+  private static boolean xhrUploads = false;
+  private static final int MAX_BUSY_RETRIES = 8;
+  private static final int MAX_BUSY_DELAY = 60000;
+  private static int instantUploadSize = 0;
 
   protected static final String STYLE_BUTTON = "upld-button";
   protected static final String STYLE_INPUT = "upld-input";
@@ -121,6 +132,8 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   protected IUploadStatus statusWidget = new BaseUploadStatus();
   protected UploaderConstants i18nStrs = GWT.create(UploaderConstants.class);
   protected long lastData = now();
+  protected long lastCurrentBytes = 0;
+  private boolean statusChanged = false;
 
   protected IFileInput fileInput;
   protected FormPanel uploadForm;
@@ -190,6 +203,11 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   }
 
   private final UpdateTimer updateStatusTimer = new UpdateTimer(this, statusInterval);
+  private JavaScriptObject statusEventSource = null;
+  private UploadTransport transport = null;
+  private Timer retryTimer = null;
+  private int busyRetries = 0;
+  private boolean retrying = false;
 
   private String basename = null;
 
@@ -255,16 +273,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private final RequestCallback onStatusReceivedCallback = new RequestCallback() {
     public void onError(Request request, Throwable exception) {
       waitingForResponse = false;
-      if (exception instanceof RequestTimeoutException) {
-        GWT.log("GWTUpload: onStatusReceivedCallback timeout error, asking the server again.", null);
-      } else {
-        GWT.log("GWTUpload: onStatusReceivedCallback error: " + exception.getMessage(), exception);
-        updateStatusTimer.finish();
-        String message = removeHtmlTags(exception.getMessage());
-        message += "\n" + exception.getClass().getName();
-        message += "\n" + exception.toString();
-        statusWidget.setError(i18nStrs.uploaderServerUnavailable() + getServletPath() + "\n\n" + message);
-      }
+      onStatusError(exception);
     }
 
     public void onResponseReceived(Request request, Response response) {
@@ -273,43 +282,107 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       if (finished == true && !uploading)
         return;
 
-      parseAjaxResponse(response.getText());
+      if (statusJson)
+        parseJsonResponse(response.getText());
+      else
+        parseAjaxResponse(response.getText());
+
+      // With long polling the server has held the request until something changed, so ask again
+      // right away; otherwise it has answered immediately and the timer paces the requests.
+      if (statusWait > 0 && statusChanged && uploading) {
+        update();
+      }
     }
 
   };
 
+  /**
+   * Called when a status request fails.
+   * 
+   * Timeouts are ignored because the next request will ask again, other errors stop the status repeater.
+   */
+  void onStatusError(Throwable exception) {
+    if (exception instanceof RequestTimeoutException) {
+      GWT.log("GWTUpload: onStatusReceivedCallback timeout error, asking the server again.", null);
+    } else {
+      GWT.log("GWTUpload: onStatusReceivedCallback error: " + exception.getMessage(), exception);
+      stopStatusUpdates();
+      String message = removeHtmlTags(exception.getMessage());
+      message += "\n" + exception.getClass().getName();
+      message += "\n" + exception.toString();
+      statusWidget.setError(i18nStrs.uploaderServerUnavailable() + getServletPath() + "\n\n" + message);
+    }
+  }
+
+  /**
+   * Called by the shared {@link StatusPoller} with the status of this upload.
+   */
+  void onStatusReceived(ServerStatus status) {
+    if (finished == true && !uploading)
+      return;
+    parseStatus(status, null, String.valueOf(status));
+  }
+
   private void parseAjaxResponse(String responseTxt) {
+    ServerStatus status = null;
     String error = null;
-    Document doc = null;
 
     try {
-      doc = XMLParser.parse(responseTxt);
-      error = Utils.getXmlNodeValue(doc, "error");
+      Document doc = XMLParser.parse(responseTxt);
+      status = new ServerStatus.Xml(doc.getDocumentElement());
     } catch (Exception e) {
       if (responseTxt.toLowerCase().matches("error"))
         error = i18nStrs.uploaderServerError() + "\nAction: " + getServletPath() + "\nException: " + e.getMessage() + responseTxt;
     }
+    parseStatus(status, error, responseTxt);
+  }
+
+  private void parseJsonResponse(String responseTxt) {
+    ServerStatus status = null;
+    String error = null;
+
+    try {
+      status = new ServerStatus.Json(ServerStatus.Json.parse(responseTxt));
+    } catch (Exception e) {
+      error = i18nStrs.uploaderServerError() + "\nAction: " + getServletPath() + "\nException: " + e.getMessage() + responseTxt;
+    }
+    parseStatus(status, error, responseTxt);
+  }
+
+  private static String getValue(ServerStatus status, String name) {
+    return status == null ? null : status.get(name);
+  }
+
+  private void parseStatus(ServerStatus status, String error, String responseTxt) {
+    statusChanged = false;
+    if (error == null)
+      error = getValue(status, "error");
 
     if (error != null) {
       successful = false;
       statusWidget.setError(error);
       uploadFinished();
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_WAIT) != null) {
-      // waiting...?
-    } else if (Utils.getXmlNodeValue(doc, TAG_CANCELED) != null) {
+    } else if (getValue(status, TAG_WAIT) != null) {
+      // the server was busy and didn't take the upload
+      retryUpload(getValue(status, TAG_WAIT));
+      return;
+    } else if (getValue(status, TAG_CANCELED) != null) {
       successful = false;
       cancelled = true;
       uploadFinished();
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_FINISHED) != null) {
+    } else if (getValue(status, TAG_FINISHED) != null) {
       successful = true;
       uploadFinished();
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_PERCENT) != null) {
+    } else if (getValue(status, TAG_PERCENT) != null) {
       lastData = now();
-      int transferredKB = Integer.valueOf(Utils.getXmlNodeValue(doc, TAG_CURRENT_BYTES)) / 1024;
-      int totalKB = Integer.valueOf(Utils.getXmlNodeValue(doc, TAG_TOTAL_BYTES)) / 1024;
+      long currentBytes = Long.valueOf(getValue(status, TAG_CURRENT_BYTES));
+      statusChanged = currentBytes != lastCurrentBytes;
+      lastCurrentBytes = currentBytes;
+      int transferredKB = (int) (currentBytes / 1024);
+      int totalKB = Integer.valueOf(getValue(status, TAG_TOTAL_BYTES)) / 1024;
       statusWidget.setProgress(transferredKB, totalKB);
       return;
    } else {
@@ -337,6 +410,12 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private SubmitHandler onSubmitFormHandler = new SubmitHandler() {
     public void onSubmit(SubmitEvent event) {
 
+      if (retrying) {
+        retrying = false;
+        startSending(event);
+        return;
+      }
+
       if (!finished && uploading) {
         uploading = false;
         statusWidget.setStatus(IUploadStatus.Status.CANCELED);
@@ -362,16 +441,78 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       uploading = true;
       finished = false;
       cancelled = false;
-
-      statusWidget.setVisible(true);
-      // wait a time before asking the server status
-      updateStatusTimer.squeduleStart();
-      statusWidget.setProgress(0, 0);
-      statusWidget.setStatus(IUploadStatus.Status.INPROGRESS);
-      lastData = now();
+      busyRetries = 0;
+      startSending(event);
     }
   };
 
+  /**
+   * Sends the file with XMLHttpRequest when enabled and supported, cancelling the form submit,
+   * otherwise lets the form be submitted to the iframe and asks the server for the progress.
+   */
+  private void startSending(SubmitEvent event) {
+    statusWidget.setVisible(true);
+    // with XMLHttpRequest the iframe isn't used, progress comes from the browser and the server doesn't save it
+    JavaScriptObject file = chunkSize > 0 ? ChunkedUpload.getFile(fileInput.getWidget().getElement()) : null;
+    if (file != null) {
+      transport = new ChunkedUpload(_this, composeURL("progress=false"), file, chunkSize, chunkConcurrency);
+    } else if (xhrUploads && FormDataUpload.isSupported()) {
+      transport = new FormDataUpload(_this, composeURL("progress=false"), uploadForm.getElement());
+    }
+    JavaScriptObject known = transport != null && instantUploadSize > 0 ? InstantUpload.getFile(fileInput.getWidget().getElement(), instantUploadSize) : null;
+    if (known != null) {
+      transport = new InstantUpload(_this, composeURL(), known, transport);
+    }
+    if (transport != null) {
+      event.cancel();
+      transport.start();
+    } else {
+      startStatusUpdates();
+    }
+    statusWidget.setProgress(0, 0);
+    statusWidget.setStatus(IUploadStatus.Status.INPROGRESS);
+    lastData = now();
+    lastCurrentBytes = 0;
+  }
+
+  /**
+   * Submits the form again when the server asks to wait, each time waiting longer.
+   */
+  private void retryUpload(String wait) {
+    stopStatusUpdates();
+    transport = null;
+    if (++busyRetries > MAX_BUSY_RETRIES) {
+      successful = false;
+      statusWidget.setError(i18nStrs.uploaderServerUnavailable() + getServletPath());
+      uploadFinished();
+      return;
+    }
+    statusWidget.setStatus(IUploadStatus.Status.QUEUED);
+    retryTimer = new Timer() {
+      public void run() {
+        retryTimer = null;
+        retrying = true;
+        uploadForm.submit();
+      }
+    };
+    retryTimer.schedule(getRetryDelay(wait, busyRetries));
+  }
+
+  /**
+   * Returns the milliseconds to wait before sending again what a busy server refused: the seconds it
+   * asked for, doubled for each retry up to a minute, plus up to a quarter more so that the clients
+   * refused at the same time don't come back at the same time.
+   */
+  static int getRetryDelay(String wait, int retries) {
+    int seconds = 1;
+    try {
+      seconds = Math.max(1, Integer.parseInt(wait.trim()));
+    } catch (Exception e) {
+    }
+    int delay = Math.min(MAX_BUSY_DELAY, seconds * 1000 * (1 << Math.min(retries - 1, 6)));
+    return delay + (int) (Math.random() * delay / 4);
+  }
+
   private SubmitCompleteHandler onSubmitCompleteHandler = new SubmitCompleteHandler() {
     public void onSubmitComplete(SubmitCompleteEvent event) {
       serverResponse = event.getResults();
@@ -379,6 +520,33 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     }
   };
 
+  /**
+   * Called by the XMLHttpRequest transport with the bytes sent.
+   */
+  void onTransportProgress(double currentBytes, double totalBytes) {
+    lastData = now();
+    statusWidget.setProgress((int) (currentBytes / 1024), (int) (totalBytes / 1024));
+  }
+
+  /**
+   * Called by the XMLHttpRequest transport with the response that ends the upload.
+   */
+  void onTransportFinished(String responseTxt) {
+    transport = null;
+    serverResponse = responseTxt;
+    parseAjaxResponse(responseTxt);
+  }
+
+  /**
+   * Called by the XMLHttpRequest transport when the upload can't be sent.
+   */
+  void onTransportError(String error) {
+    transport = null;
+    successful = false;
+    statusWidget.setError(error);
+    uploadFinished();
+  }
+
   private IUploadStatus.UploadCancelHandler cancelHandler = new IUploadStatus.UploadCancelHandler() {
     public void onCancel() {
       cancel();
@@ -412,8 +580,23 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
 
     cancelled = true;
     GWT.log("cancelling " + uploading, null);
-    if (uploading) {
-      updateStatusTimer.finish();
+    if (uploading && retryTimer != null) {
+      // waiting to send it again, the server hasn't got anything
+      retryTimer.cancel();
+      retryTimer = null;
+      uploadFinished();
+    } else if (uploading && transport != null) {
+      // no request will come back to finish the upload, the server is told and we are done
+      transport.abort();
+      transport = null;
+      try {
+        sendAjaxRequestToCancelCurrentUpload();
+      } catch (Exception e) {
+        GWT.log("Exception cancelling request " + e.getMessage(), e);
+      }
+      uploadFinished();
+    } else if (uploading) {
+      stopStatusUpdates();
       try {
         // uploadFinished will be called when our main upload completes
         sendAjaxRequestToCancelCurrentUpload();
@@ -426,6 +609,71 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     }
   }
 
+  /**
+   * Starts following the upload progress, with a Server-Sent Events stream when it is enabled
+   * and the browser supports it, otherwise asking the server periodically.
+   */
+  private void startStatusUpdates() {
+    if (statusEvents && isEventSourceSupported()) {
+      statusEventSource = openEventSource(composeURL("events=" + fileToken));
+    } else if (statusBatching) {
+      StatusPoller.get(getServletPath(), statusInterval, statusJson).add(this);
+    } else {
+      // wait a time before asking the server status
+      updateStatusTimer.squeduleStart();
+    }
+  }
+
+  private void stopStatusUpdates() {
+    updateStatusTimer.finish();
+    if (statusBatching) {
+      StatusPoller.get(getServletPath(), statusInterval, statusJson).remove(this);
+    }
+    if (statusEventSource != null) {
+      closeEventSource(statusEventSource);
+      statusEventSource = null;
+    }
+  }
+
+  private void onStatusEvent(String data) {
+    if (finished && !uploading)
+      return;
+    parseAjaxResponse(data);
+  }
+
+  /**
+   * Called when the browser gives up the events stream, so we fall back to asking the server periodically.
+   */
+  private void onStatusEventsClosed() {
+    statusEventSource = null;
+    if (uploading) {
+      updateStatusTimer.squeduleStart();
+    }
+  }
+
+  private static native boolean isEventSourceSupported() /*-{
+    return !!$wnd.EventSource;
+  }-*/;
+
+  private native JavaScriptObject openEventSource(String url) /*-{
+    var self = this;
+    var es = new $wnd.EventSource(url);
+    es.onmessage = $entry(function(e) {
+      self.@gwtupload.client.Uploader::onStatusEvent(Ljava/lang/String;)(e.data);
+    });
+    es.onerror = $entry(function(e) {
+      // the browser reconnects by itself unless the stream is closed
+      if (es.readyState == 2) {
+        self.@gwtupload.client.Uploader::onStatusEventsClosed()();
+      }
+    });
+    return es;
+  }-*/;
+
+  private static native void closeEventSource(JavaScriptObject es) /*-{
+    es.close();
+  }-*/;
+
   /**
    * Called when the uploader detects that the upload process has finished:
    * - in the case of submit complete.
@@ -435,7 +683,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     try {
       finished = true;
       uploading = false;
-      updateStatusTimer.finish();
+      stopStatusUpdates();
 
       if (successful) {
         statusWidget.setStatus(IUploadStatus.Status.SUCCESS);
@@ -649,8 +897,15 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       waitingForResponse = true;
       // Using a reusable builder makes IE fail because it caches the response
       // So it's better to change the request path sending an additional random parameter
-      RequestBuilder reqBuilder = new RequestBuilder(RequestBuilder.GET, composeURL("status=" + fileToken, "c=" + requestsCounter++));
-      reqBuilder.setTimeoutMillis(DEFAULT_AJAX_TIMEOUT);
+      String format = statusJson ? "format=json" : "format=xml";
+      RequestBuilder reqBuilder;
+      if (statusWait > 0) {
+        reqBuilder = new RequestBuilder(RequestBuilder.GET, composeURL("status=" + fileToken, "wait=" + lastCurrentBytes, format, "c=" + requestsCounter++));
+        reqBuilder.setTimeoutMillis(statusWait + DEFAULT_AJAX_TIMEOUT);
+      } else {
+        reqBuilder = new RequestBuilder(RequestBuilder.GET, composeURL("status=" + fileToken, format, "c=" + requestsCounter++));
+        reqBuilder.setTimeoutMillis(DEFAULT_AJAX_TIMEOUT);
+      }
       reqBuilder.sendRequest("get_status", onStatusReceivedCallback);
     } catch (RequestException e) {
       e.printStackTrace();
@@ -683,7 +938,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   }
 
   private void sendAjaxRequestToDeleteUploadedFile() throws RequestException {
-    RequestBuilder reqBuilder = new RequestBuilder(RequestBuilder.GET, composeURL("remove=" + getInputName()));
+    RequestBuilder reqBuilder = new RequestBuilder(RequestBuilder.POST, composeURL("remove=" + fileToken));
     reqBuilder.sendRequest("remove_file", onDeleteFileCallback);
   }
 
@@ -812,7 +1067,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
    */
   public void reset() {
     this.uploadForm.reset();
-    updateStatusTimer.finish();
+    stopStatusUpdates();
     uploading = cancelled = finished = successful = false;
     basename = serverResponse = null;
   }
@@ -844,6 +1099,88 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     Uploader.statusInterval = statusInterval;
   }
 
+  /**
+   * Send the files in chunks of <code>chunkSize</code> bytes, <code>concurrency</code> of them at once,
+   * when the browser can slice files and send them with XMLHttpRequest level 2. Each chunk is retried
+   * on its own when it fails. Other browsers submit the form as usual. Use 0 to disable.
+   * 
+   * @param chunkSize
+   * @param concurrency
+   */
+  public static void setChunkedUploads(int chunkSize, int concurrency) {
+    Uploader.chunkSize = chunkSize;
+    Uploader.chunkConcurrency = Math.max(1, concurrency);
+  }
+
+  /**
+   * Send the form with XMLHttpRequest and FormData when the browser supports them, following the
+   * progress with the browser's upload events instead of asking the server for the status.
+   * Other browsers submit the form to the hidden iframe as usual.
+   * 
+   * @param enabled
+   */
+  public static void setXhrUploads(boolean enabled) {
+    Uploader.xhrUploads = enabled;
+  }
+
+  /**
+   * Before sending a file of up to <code>maxSize</code> bytes, compute its digest in the browser and
+   * send it to the server, which finishes the upload at once if it already stores that content.
+   * Only used when the file is sent with XMLHttpRequest, see {@link #setXhrUploads(boolean)} and 
+   * {@link #setChunkedUploads(int, int)}, and the browser has WebCrypto. Use 0 to disable.
+   * The servlet has to allow it with its <code>instantUploads</code> parameter.
+   * 
+   * @param maxSize
+   */
+  public static void setInstantUploads(int maxSize) {
+    Uploader.instantUploadSize = maxSize;
+  }
+
+  /**
+   * Ask the server for the progress in the compact json format instead of xml, which is
+   * parsed with the browser's native JSON parser when available. 
+   * The response to the form submit is always xml.
+   * 
+   * @param enabled
+   */
+  public static void setStatusJson(boolean enabled) {
+    Uploader.statusJson = enabled;
+  }
+
+  /**
+   * Ask the server for the progress of all the uploaders of the page that use the same servlet
+   * in a single request per status interval, instead of one request per uploader.
+   * 
+   * @param enabled
+   */
+  public static void setStatusBatching(boolean enabled) {
+    Uploader.statusBatching = enabled;
+  }
+
+  /**
+   * Follow the upload progress through a Server-Sent Events stream instead of asking the server
+   * every status interval. Browsers without EventSource keep asking periodically, and so do the
+   * others when the servlet doesn't stream events, which needs its statusWaitTimeout parameter.
+   * 
+   * @param enabled
+   */
+  public static void setStatusEvents(boolean enabled) {
+    Uploader.statusEvents = enabled;
+  }
+
+  /**
+   * Ask the server to hold each status request until the progress changes, for up to
+   * maxWait milliseconds, so the progress is fresher with fewer requests.
+   * 
+   * The servlet must have the statusWaitTimeout parameter set to a value not greater than maxWait,
+   * otherwise it answers right away and the status interval paces the requests as usual. 
+   * 
+   * @param maxWait milliseconds, or 0 to disable long polling
+   */
+  public static void setStatusLongPolling(int maxWait) {
+    Uploader.statusWait = maxWait;
+  }
+
   /* (non-Javadoc)
    * @see gwtupload.client.IUploader#getBasename()
    */
@@ -0,0 +1,71 @@
+package gwtupload.server;
+
+/**
+ * Default {@link ProgressSavePolicy}.
+ *
+ * Progress is saved when it changed by at least <code>percentStep</code> percent (or
+ * <code>bytesStep</code> bytes, when set) and the save interval has passed. The interval is
+ * never shorter than <code>minInterval</code>, and it grows with the measured latency of the
+ * repository so a slow backend spends at most about 1/<code>latencyFactor</code> of the
+ * upload time saving. Progress is always saved after <code>maxInterval</code> so the status
+ * keeps moving.
+ */
+public class AdaptiveSavePolicy implements ProgressSavePolicy {
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final long minIntervalNanos;
+  private final long maxIntervalNanos;
+  private final int percentStep;
+  private final long bytesStep;
+  private final int latencyFactor;
+  private volatile long averageLatency = 0;
+
+  /** Saves at most once per second, whenever the percent has changed. */
+  public AdaptiveSavePolicy() {
+    this(1000, 10000, 1, 0, 10);
+  }
+
+  /**
+   * @param minInterval minimum milliseconds between saves
+   * @param maxInterval milliseconds after which the progress is saved even if it barely changed
+   * @param percentStep minimum change in percent, ignored when the total size is unknown
+   * @param bytesStep minimum change in bytes, or 0 to only look at the percent
+   * @param latencyFactor how many times the average save latency to wait between saves
+   */
+  public AdaptiveSavePolicy(long minInterval, long maxInterval, int percentStep, long bytesStep, int latencyFactor) {
+    this.minIntervalNanos = minInterval * NANOS_PER_MILLI;
+    this.maxIntervalNanos = Math.max(minInterval, maxInterval) * NANOS_PER_MILLI;
+    this.percentStep = percentStep;
+    this.bytesStep = bytesStep;
+    this.latencyFactor = latencyFactor;
+  }
+
+  public boolean shouldSave(long elapsedNanos, long savedBytes, long currentBytes, long totalBytes) {
+    if (elapsedNanos >= maxIntervalNanos) {
+      return true;
+    }
+    if (elapsedNanos < minIntervalNanos || elapsedNanos < averageLatency * latencyFactor) {
+      return false;
+    }
+    final long changed = currentBytes - savedBytes;
+    if (bytesStep > 0 && changed >= bytesStep) {
+      return true;
+    }
+    if (totalBytes > 0) {
+      return changed * 100 >= percentStep * totalBytes;
+    }
+    return bytesStep <= 0;
+  }
+
+  public void saved(long latencyNanos) {
+    // exponentially weighted moving average; a lost update between threads is harmless
+    averageLatency += (latencyNanos - averageLatency) >> 3;
+  }
+
+  /** @return the average time in nanoseconds the repository takes to save progress */
+  public long getAverageLatency() {
+    return averageLatency;
+  }
+
+}
@@ -0,0 +1,150 @@
+package gwtupload.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the uploads received at once: how many, how many bytes they declare in their
+ * Content-Length, and how many come from the same client. An upload over a limit is refused
+ * at once, so it doesn't hold a container thread or a repository connection while it waits.
+ *
+ * A limit of 0 or less means no limit. An upload bigger than the byte limit is still let in
+ * when no other bytes are in flight, so it is refused by the size check instead of forever.
+ */
+public class AdmissionController {
+
+  private final int maxUploads;
+  private final long maxBytes;
+  private final int maxPerClient;
+  private final AtomicInteger uploads = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicInteger> clients = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /**
+   * @param maxUploads the uploads received at the same time
+   * @param maxBytes the sum of the declared sizes of those uploads
+   * @param maxPerClient the uploads received at the same time from one client
+   */
+  public AdmissionController(int maxUploads, long maxBytes, int maxPerClient) {
+    this.maxUploads = maxUploads;
+    this.maxBytes = maxBytes;
+    this.maxPerClient = maxPerClient;
+  }
+
+  /**
+   * @param client identifies the client, like its address
+   * @param contentLength the declared size of the upload, or -1 if it isn't known
+   * @return the ticket to release when the upload is done, or null if it has to be refused
+   */
+  public Ticket tryAcquire(String client, long contentLength) {
+    final long length = Math.max(0, contentLength);
+    if (!increment(uploads, maxUploads)) {
+      return null;
+    }
+    if (!addBytes(length)) {
+      uploads.decrementAndGet();
+      return null;
+    }
+    AtomicInteger count = null;
+    if (maxPerClient > 0 && client != null) {
+      count = acquireClient(client);
+      if (count == null) {
+        bytes.addAndGet(-length);
+        uploads.decrementAndGet();
+        return null;
+      }
+    }
+    return new Ticket(client, count, length);
+  }
+
+  /** @return the uploads being received */
+  public int getUploads() {
+    return uploads.get();
+  }
+
+  /** @return the declared bytes of the uploads being received */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /** @return the clients with uploads being received, when there is a limit per client */
+  public int getClients() {
+    return clients.size();
+  }
+
+  private static boolean increment(AtomicInteger counter, int max) {
+    for (;;) {
+      final int current = counter.get();
+      if (max > 0 && current >= max) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private boolean addBytes(long length) {
+    for (;;) {
+      final long current = bytes.get();
+      if (maxBytes > 0 && current > 0 && current + length > maxBytes) {
+        return false;
+      }
+      if (bytes.compareAndSet(current, current + length)) {
+        return true;
+      }
+    }
+  }
+
+  /** @return the counter of the client with this upload added, or null if it has too many */
+  private AtomicInteger acquireClient(String client) {
+    for (;;) {
+      AtomicInteger count = clients.get(client);
+      if (count == null) {
+        final AtomicInteger created = new AtomicInteger();
+        count = clients.putIfAbsent(client, created);
+        if (count == null) {
+          count = created;
+        }
+      }
+      final int current = count.get();
+      if (current < 0) {
+        clients.remove(client, count); // released and being removed, use a new one
+      } else if (current >= maxPerClient) {
+        return null;
+      } else if (count.compareAndSet(current, current + 1)) {
+        return count;
+      }
+    }
+  }
+
+  /** An admitted upload. */
+  public class Ticket {
+    private final String client;
+    private final AtomicInteger count;
+    private final long length;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Ticket(String client, AtomicInteger count, long length) {
+      this.client = client;
+      this.count = count;
+      this.length = length;
+    }
+
+    /** Lets other uploads in; only the first call counts. */
+    public void release() {
+      if (!released.compareAndSet(false, true)) {
+        return;
+      }
+      // a counter back to 0 is marked with -1 so no upload is added to it while it's removed
+      if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+        clients.remove(client, count);
+      }
+      bytes.addAndGet(-length);
+      uploads.decrementAndGet();
+    }
+  }
+
+}
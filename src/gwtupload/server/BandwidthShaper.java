@@ -0,0 +1,173 @@
+package gwtupload.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Limits how fast uploads are read, for each upload, for each client and for all of them,
+ * with a {@link TokenBucket} each. A rate of 0 or less means no limit.
+ *
+ * The request stream takes the bytes it reads from every bucket and pauses for the longest
+ * wait, only when it is worth parking the thread; shorter debts are paid by the next pause.
+ * Reads are cut so that a pause is a small fraction of a second, and an interrupted thread stops.
+ * Buckets of clients that have been idle for a minute are dropped. A {@link PauseListener} is
+ * told about every pause, so a {@link ThroughputMonitor} doesn't take it for a slow client.
+ */
+public class BandwidthShaper {
+
+  private static final long MIN_PAUSE = 10 * 1000000L; // 10ms
+  private static final long IDLE = 60 * 1000000000L; // 1 minute
+  private static final int MIN_READ = 1024;
+  private final long uploadRate;
+  private final long clientRate;
+  private final long burstBytes;
+  private final int maxRead;
+  private final TokenBucket total;
+  private final ConcurrentHashMap<String, TokenBucket> clients = new ConcurrentHashMap<String, TokenBucket>();
+  private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + IDLE);
+
+  /**
+   * @param uploadRate bytes per second of each upload
+   * @param clientRate bytes per second of all the uploads of a client
+   * @param totalRate bytes per second of all the uploads
+   * @param burstBytes bytes that can be read at once after a pause
+   */
+  public BandwidthShaper(long uploadRate, long clientRate, long totalRate, long burstBytes) {
+    this.uploadRate = uploadRate;
+    this.clientRate = clientRate;
+    this.burstBytes = burstBytes;
+    this.total = totalRate > 0 ? new TokenBucket(totalRate, burstBytes) : null;
+    long slowest = Long.MAX_VALUE;
+    for (long rate : new long[] { uploadRate, clientRate, totalRate }) {
+      if (rate > 0) {
+        slowest = Math.min(slowest, rate);
+      }
+    }
+    // reads of 1/20s at the slowest rate
+    this.maxRead = (int) Math.max(MIN_READ, Math.min(Integer.MAX_VALUE, slowest / 20));
+  }
+
+  /** Told how long a shaped stream is going to pause. */
+  public interface PauseListener {
+    void paused(long nanos);
+  }
+
+  /** @return the request, with its body read at the rates of this shaper */
+  public HttpServletRequest shape(HttpServletRequest request, String client) {
+    return shape(request, client, null);
+  }
+
+  /** @return the request, with its body read at the rates of this shaper and the pauses told to the listener */
+  public HttpServletRequest shape(HttpServletRequest request, final String client, final PauseListener listener) {
+    return new FilteredRequest(request) {
+      protected InputStream filter(InputStream body) {
+        return shape(body, client, listener);
+      }
+    };
+  }
+
+  /** @return the stream, read at the rates of this shaper */
+  public InputStream shape(InputStream in, String client) {
+    return shape(in, client, null);
+  }
+
+  /** @return the stream, read at the rates of this shaper and the pauses told to the listener, which may be null */
+  public InputStream shape(InputStream in, String client, PauseListener listener) {
+    sweep();
+    final TokenBucket upload = uploadRate > 0 ? new TokenBucket(uploadRate, burstBytes) : null;
+    return new ShapedInputStream(in, listener, upload, client != null && clientRate > 0 ? clientBucket(client) : null, total);
+  }
+
+  private TokenBucket clientBucket(String client) {
+    TokenBucket bucket = clients.get(client);
+    if (bucket == null) {
+      final TokenBucket created = new TokenBucket(clientRate, burstBytes);
+      bucket = clients.putIfAbsent(client, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  /** Drops the buckets of idle clients, at most once a minute and from one thread. */
+  private void sweep() {
+    final long now = System.nanoTime();
+    final long next = nextSweep.get();
+    if (now - next < 0 || !nextSweep.compareAndSet(next, now + IDLE)) {
+      return;
+    }
+    for (Map.Entry<String, TokenBucket> e : clients.entrySet()) {
+      if (e.getValue().isIdle(IDLE)) {
+        clients.remove(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  private class ShapedInputStream extends FilterInputStream {
+    private final PauseListener listener;
+    private final TokenBucket[] buckets;
+
+    ShapedInputStream(InputStream in, PauseListener listener, TokenBucket... buckets) {
+      super(in);
+      this.listener = listener;
+      this.buckets = buckets;
+    }
+
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        pay(1);
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int n = super.read(b, off, Math.min(len, maxRead));
+      if (n > 0) {
+        pay(n);
+      }
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(Math.min(n, maxRead));
+      if (skipped > 0) {
+        pay(skipped);
+      }
+      return skipped;
+    }
+
+    private void pay(long bytes) throws IOException {
+      long wait = 0;
+      for (TokenBucket bucket : buckets) {
+        if (bucket != null) {
+          wait = Math.max(wait, bucket.reserve(bytes));
+        }
+      }
+      if (wait < MIN_PAUSE) {
+        return;
+      }
+      if (listener != null) {
+        listener.paused(wait);
+      }
+      final long until = System.nanoTime() + wait;
+      for (long left = wait; left > 0; left = until - System.nanoTime()) {
+        LockSupport.parkNanos(left);
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while shaping the upload");
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,15 @@
+package gwtupload.server;
+
+import java.util.Collection;
+import java.util.Map;
+
+/** A {@link FileRepository} that can save or load the progress of many uploads in one round trip. */
+public interface BulkFileRepository extends FileRepository {
+
+  /** @return the progress of each token, as <code>loadProgress(Integer)</code> would return it */
+  Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens);
+
+  /** Saves the bytes of several uploads at once; the messages in the values are ignored. */
+  void saveProgress(Map<Integer, FileProgress> progress);
+
+}
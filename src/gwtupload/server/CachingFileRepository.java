@@ -0,0 +1,387 @@
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Wraps a slow {@link FileRepository} with an in-memory cache of the small files recently
+ * uploaded or downloaded, so previews shown right after an upload don't read them back.
+ *
+ * Files of up to <code>maxItemBytes</code> are kept while they are saved, and when they are
+ * read; either way the wrapped repository has to be a {@link RangedFileRepository}, which gives
+ * the entity tag and date of the cached copy, so clients see the same validators with or
+ * without the cache. The least recently used ones are dropped to
+ * keep the cache under <code>maxBytes</code>. Saving a file again, completing a chunked upload
+ * removing the upload or {@link #invalidate(Integer)} drop the cached copy; a read that raced
+ * with them isn't cached.
+ *
+ * Progress and errors are passed straight through, and closing it closes the wrapped repository.
+ * Multiple files, chunks and removals work when the wrapped repository supports them, which
+ * {@link #supports} tells.
+ */
+public class CachingFileRepository implements BulkFileRepository, MultipleFileRepository, ChunkedFileRepository, RangedFileRepository, RemovableFileRepository,
+    WrappingFileRepository, Closeable {
+
+  private final FileRepository delegate;
+  private final long maxBytes;
+  private final int maxItemBytes;
+  private final LinkedHashMap<Long, Cached> cache = new LinkedHashMap<Long, Cached>(16, 0.75f, true);
+  private long cachedBytes; // guarded by cache
+  private long changes; // guarded by cache, incremented when any cached file changes
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxBytes the size of all the cached files
+   * @param maxItemBytes the size of the biggest file cached
+   */
+  public CachingFileRepository(FileRepository delegate, long maxBytes, int maxItemBytes) {
+    this.delegate = delegate;
+    this.maxBytes = maxBytes;
+    this.maxItemBytes = (int) Math.min(maxItemBytes, maxBytes);
+  }
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    saveData(fileToken, 0, contentType, data, request);
+  }
+
+  public void saveData(Integer fileToken, int item, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    final Long key = key(fileToken, item);
+    remove(key);
+    final CapturingInputStream in = new CapturingInputStream(data, maxItemBytes);
+    try {
+      if (item == 0) {
+        delegate.saveData(fileToken, contentType, in, request);
+      } else if (delegate instanceof MultipleFileRepository) {
+        ((MultipleFileRepository) delegate).saveData(fileToken, item, contentType, in, request);
+      } else {
+        throw new UploadErrorException("Only one file can be uploaded");
+      }
+    } finally {
+      // a read during the save may have cached the previous content
+      remove(key);
+    }
+    final byte[] bytes = in.getCaptured();
+    if (bytes != null && delegate instanceof RangedFileRepository) {
+      final long seen;
+      synchronized (cache) {
+        seen = changes;
+      }
+      final StoredData stored = ((RangedFileRepository) delegate).loadData(fileToken, item);
+      if (stored != null) {
+        try {
+          if (stored.getSize() == bytes.length) {
+            put(key, new Cached(stored.getContentType(), bytes, stored.getLastModified(), stored.getETag()), seen);
+          }
+        } finally {
+          stored.close();
+        }
+      }
+    }
+  }
+
+  public ChunkRanges saveChunk(Integer fileToken, long offset, long length, long totalBytes, String contentType, InputStream data, HttpServletRequest request)
+      throws IOException, UploadErrorException {
+    if (!(delegate instanceof ChunkedFileRepository)) {
+      throw new UploadErrorException("Chunked uploads are not supported");
+    }
+    final ChunkRanges ranges = ((ChunkedFileRepository) delegate).saveChunk(fileToken, offset, length, totalBytes, contentType, data, request);
+    if (ranges.isComplete()) {
+      remove(key(fileToken, 0));
+    }
+    return ranges;
+  }
+
+  public ChunkRanges loadChunks(Integer fileToken) {
+    return delegate instanceof ChunkedFileRepository ? ((ChunkedFileRepository) delegate).loadChunks(fileToken) : null;
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+    delegate.saveProgress(fileToken, currentBytes, totalBytes);
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes, int item, int storedItems) {
+    if (delegate instanceof MultipleFileRepository) {
+      ((MultipleFileRepository) delegate).saveProgress(fileToken, currentBytes, totalBytes, item, storedItems);
+    } else {
+      delegate.saveProgress(fileToken, currentBytes, totalBytes);
+    }
+  }
+
+  public void saveProgress(Map<Integer, FileProgress> progress) {
+    if (delegate instanceof BulkFileRepository) {
+      ((BulkFileRepository) delegate).saveProgress(progress);
+    } else {
+      for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+        delegate.saveProgress(e.getKey(), e.getValue().getCurrentBytes(), e.getValue().getTotalBytes());
+      }
+    }
+  }
+
+  public void saveError(Integer fileToken, String message) {
+    delegate.saveError(fileToken, message);
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    return delegate.loadProgress(fileToken);
+  }
+
+  public Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    if (delegate instanceof BulkFileRepository) {
+      return ((BulkFileRepository) delegate).loadProgress(fileTokens);
+    }
+    final Map<Integer, FileProgress> loaded = new HashMap<Integer, FileProgress>();
+    for (Integer fileToken : fileTokens) {
+      loaded.put(fileToken, delegate.loadProgress(fileToken));
+    }
+    return loaded;
+  }
+
+  public StoredData loadData(Integer fileToken, int item) throws IOException {
+    final Long key = key(fileToken, item);
+    final long seen;
+    synchronized (cache) {
+      final Cached cached = cache.get(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached.open();
+      }
+      seen = changes;
+    }
+    misses.incrementAndGet();
+    if (!(delegate instanceof RangedFileRepository)) {
+      return null;
+    }
+    final StoredData data = ((RangedFileRepository) delegate).loadData(fileToken, item);
+    if (data == null || data.getSize() > maxItemBytes) {
+      return data;
+    }
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) data.getSize());
+      data.writeTo(0, data.getSize(), bytes);
+      final Cached cached = new Cached(data.getContentType(), bytes.toByteArray(), data.getLastModified(), data.getETag());
+      put(key, cached, seen);
+      return cached.open();
+    } finally {
+      data.close();
+    }
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    sendData(fileToken, 0, response);
+  }
+
+  public void sendData(Integer fileToken, int item, HttpServletResponse response) throws IOException {
+    final StoredData data = loadData(fileToken, item);
+    if (data == null) {
+      if (item == 0) {
+        delegate.sendData(fileToken, response);
+      } else if (delegate instanceof MultipleFileRepository) {
+        ((MultipleFileRepository) delegate).sendData(fileToken, item, response);
+      } else {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      }
+      return;
+    }
+    try {
+      response.setContentType(data.getContentType());
+      response.setHeader("Content-Length", String.valueOf(data.getSize()));
+      data.writeTo(0, data.getSize(), response.getOutputStream());
+      response.flushBuffer();
+    } finally {
+      data.close();
+    }
+  }
+
+  public void remove(Collection<Integer> fileTokens) {
+    if (delegate instanceof RemovableFileRepository) {
+      ((RemovableFileRepository) delegate).remove(fileTokens);
+    }
+    invalidate(fileTokens);
+  }
+
+  public Collection<Integer> findExpired(long before) {
+    return delegate instanceof RemovableFileRepository ? ((RemovableFileRepository) delegate).findExpired(before) : new ArrayList<Integer>();
+  }
+
+  /** Drops the cached files of an upload, call it when they are removed from the wrapped repository. */
+  public void invalidate(Integer fileToken) {
+    invalidate(Collections.singleton(fileToken));
+  }
+
+  private void invalidate(Collection<Integer> fileTokens) {
+    final Set<Integer> invalid = new HashSet<Integer>(fileTokens);
+    synchronized (cache) {
+      changes++;
+      for (Iterator<Map.Entry<Long, Cached>> i = cache.entrySet().iterator(); i.hasNext();) {
+        final Map.Entry<Long, Cached> e = i.next();
+        if (invalid.contains(Integer.valueOf((int) (e.getKey().longValue() >>> 32)))) {
+          cachedBytes -= e.getValue().bytes.length;
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /** Progress is loaded in bulk here, the other capabilities are the wrapped repository's; without ranges nothing is cached. */
+  public boolean supports(Class<? extends FileRepository> capability) {
+    if (!capability.isInstance(this)) {
+      return false;
+    } else if (capability == FileRepository.class || capability == BulkFileRepository.class) {
+      return true;
+    }
+    return capability.isInstance(delegate) && (!(delegate instanceof WrappingFileRepository) || ((WrappingFileRepository) delegate).supports(capability));
+  }
+
+  public void close() throws IOException {
+    if (delegate instanceof Closeable) {
+      ((Closeable) delegate).close();
+    }
+  }
+
+  /** @return the number of bytes cached */
+  public long getCachedBytes() {
+    synchronized (cache) {
+      return cachedBytes;
+    }
+  }
+
+  /** @return the number of reads served from the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of reads that went to the wrapped repository */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static Long key(Integer fileToken, int item) {
+    return Long.valueOf(((long) fileToken.intValue() << 32) | (item & 0xffffffffL));
+  }
+
+  private void remove(Long key) {
+    synchronized (cache) {
+      changes++;
+      final Cached old = cache.remove(key);
+      if (old != null) {
+        cachedBytes -= old.bytes.length;
+      }
+    }
+  }
+
+  /**
+   * Caches a file, dropping the least recently used ones over the budget.
+   *
+   * @param seen the changes counter when the file was read
+   */
+  private void put(Long key, Cached cached, long seen) {
+    synchronized (cache) {
+      if (seen != changes) {
+        return; // the file may have changed while it was read
+      }
+      changes++;
+      final Cached old = cache.put(key, cached);
+      cachedBytes += cached.bytes.length - (old != null ? old.bytes.length : 0);
+      for (Iterator<Cached> i = cache.values().iterator(); cachedBytes > maxBytes && i.hasNext();) {
+        cachedBytes -= i.next().bytes.length;
+        i.remove();
+      }
+    }
+  }
+
+  /** A cached file. */
+  private static class Cached {
+    final String contentType;
+    final byte[] bytes;
+    final long lastModified;
+    final String etag;
+
+    Cached(String contentType, byte[] bytes, long lastModified, String etag) {
+      this.contentType = contentType;
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+      this.etag = etag;
+    }
+
+    StoredData open() {
+      return new StoredData(contentType, bytes.length, lastModified, etag) {
+        public void writeTo(long offset, long length, OutputStream out) throws IOException {
+          out.write(bytes, (int) offset, (int) length);
+        }
+      };
+    }
+  }
+
+  /** Keeps a copy of what is read, as long as it fits in <code>limit</code> bytes. */
+  private static class CapturingInputStream extends FilterInputStream {
+    private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private final int limit;
+    private boolean eof;
+
+    CapturingInputStream(InputStream in, int limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b < 0) {
+        eof = true;
+      } else if (captured != null) {
+        captured.write(b);
+        checkLimit();
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int n = super.read(b, off, len);
+      if (n < 0) {
+        eof = true;
+      } else if (captured != null) {
+        captured.write(b, off, n);
+        checkLimit();
+      }
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      captured = null;
+      return super.skip(n);
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    /** @return everything that was read, or null if it was too big or not read to the end */
+    byte[] getCaptured() {
+      return eof && captured != null ? captured.toByteArray() : null;
+    }
+
+    private void checkLimit() {
+      if (captured.size() > limit) {
+        captured = null;
+      }
+    }
+  }
+
+}
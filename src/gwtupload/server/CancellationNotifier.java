@@ -0,0 +1,20 @@
+package gwtupload.server;
+
+/**
+ * Carries cancels between the nodes of a cluster, e.g. over a message bus.
+ *
+ * When a node receives a cancel published by another node it must call
+ * {@link CancellationRegistry#cancel(Integer)} on the registry given to {@link #start}.
+ */
+public interface CancellationNotifier {
+
+  /** Called once, when the registry is created. */
+  void start(CancellationRegistry registry);
+
+  /** Tells the other nodes to cancel an upload that isn't running in this one. */
+  void publish(Integer fileToken);
+
+  /** Called when the servlet is destroyed. */
+  void stop();
+
+}
@@ -0,0 +1,124 @@
+package gwtupload.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the uploads running in this node so a <code>?cancel=</code> request can
+ * stop them directly, instead of the upload thread polling the repository for a message.
+ *
+ * Cancels for uploads running on another node are handed to a {@link CancellationNotifier},
+ * which is also responsible for delivering cancels from other nodes via {@link #cancel}.
+ */
+public class CancellationRegistry {
+
+  private final ConcurrentHashMap<Integer, Handle> uploads = new ConcurrentHashMap<Integer, Handle>();
+  private final CancellationNotifier notifier;
+
+  /** Creates a registry for a single node. */
+  public CancellationRegistry() {
+    this(null);
+  }
+
+  /** @param notifier forwards cancels to other nodes, or null for a single node */
+  public CancellationRegistry(CancellationNotifier notifier) {
+    this.notifier = notifier;
+    if (notifier != null) {
+      notifier.start(this);
+    }
+  }
+
+  /**
+   * Called when an upload starts in this node; the returned handle is checked by the upload thread.
+   * Requests for the same token running at the same time, like the chunks of an upload, share a handle.
+   */
+  public Handle register(Integer fileToken) {
+    for (;;) {
+      final Handle handle = uploads.get(fileToken);
+      if (handle != null && handle.retain()) {
+        return handle;
+      }
+      final Handle created = new Handle(fileToken);
+      if (handle == null ? uploads.putIfAbsent(fileToken, created) == null : uploads.replace(fileToken, handle, created)) {
+        return created;
+      }
+    }
+  }
+
+  /** Called when an upload in this node has finished, whatever the result. */
+  public void unregister(Handle handle) {
+    if (handle.release()) {
+      uploads.remove(handle.fileToken, handle);
+    }
+  }
+
+  /**
+   * Signals an upload running in this node to stop.
+   *
+   * @return false if the upload isn't running in this node
+   */
+  public boolean cancel(Integer fileToken) {
+    final Handle handle = uploads.get(fileToken);
+    if (handle == null) {
+      return false;
+    }
+    handle.cancelled = true;
+    return true;
+  }
+
+  /** Signals an upload to stop, wherever it is running. */
+  public void cancelEverywhere(Integer fileToken) {
+    if (!cancel(fileToken) && notifier != null) {
+      notifier.publish(fileToken);
+    }
+  }
+
+  /** @return the tokens of the uploads running in this node */
+  public Set<Integer> getActiveTokens() {
+    return uploads.keySet();
+  }
+
+  public void shutdown() {
+    if (notifier != null) {
+      notifier.stop();
+    }
+  }
+
+  /** The cancel flag of one running upload. */
+  public static class Handle {
+    private final Integer fileToken;
+    private final AtomicInteger users = new AtomicInteger(1);
+    private volatile boolean cancelled = false;
+
+    Handle(Integer fileToken) {
+      this.fileToken = fileToken;
+    }
+
+    /** @return false if the last request using the handle has already released it */
+    private boolean retain() {
+      for (;;) {
+        final int n = users.get();
+        if (n == 0) {
+          return false;
+        } else if (users.compareAndSet(n, n + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /** @return true if no request uses the handle anymore */
+    private boolean release() {
+      return users.decrementAndGet() == 0;
+    }
+
+    public Integer getFileToken() {
+      return fileToken;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package gwtupload.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The byte ranges of a chunked upload that have been committed. Ranges are merged as they
+ * arrive, so chunks sent twice, overlapping or out of order are only counted once.
+ */
+public class ChunkRanges {
+
+  private final long totalBytes;
+  private final List<long[]> ranges = new ArrayList<long[]>(); // sorted, disjoint [start, end)
+  private long committedBytes;
+
+  public ChunkRanges(long totalBytes) {
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Records the bytes from <code>start</code> to <code>end</code>, exclusive.
+   *
+   * @return true if this range completed the upload, only once for each upload
+   */
+  public synchronized boolean add(long start, long end) {
+    if (start >= end) {
+      return false;
+    }
+    final boolean wasComplete = isComplete();
+    int i = 0;
+    while (i < ranges.size() && ranges.get(i)[1] < start) {
+      i++;
+    }
+    // merge every range touching the new one
+    long mergedStart = start;
+    long mergedEnd = end;
+    while (i < ranges.size() && ranges.get(i)[0] <= end) {
+      final long[] r = ranges.remove(i);
+      committedBytes -= r[1] - r[0];
+      mergedStart = Math.min(mergedStart, r[0]);
+      mergedEnd = Math.max(mergedEnd, r[1]);
+    }
+    ranges.add(i, new long[] { mergedStart, mergedEnd });
+    committedBytes += mergedEnd - mergedStart;
+    return !wasComplete && isComplete();
+  }
+
+  /** @return the number of bytes received from the start of the file without a gap, where a client resumes */
+  public synchronized long getOffset() {
+    return !ranges.isEmpty() && ranges.get(0)[0] == 0 ? ranges.get(0)[1] : 0;
+  }
+
+  /** @return the number of different bytes committed */
+  public synchronized long getCommittedBytes() {
+    return committedBytes;
+  }
+
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public synchronized boolean isComplete() {
+    return getOffset() >= totalBytes;
+  }
+
+  /** @return the ranges as <code>start-end,start-end</code>, with inclusive ends as in Content-Range */
+  public synchronized String toString() {
+    final StringBuilder b = new StringBuilder();
+    for (long[] r : ranges) {
+      if (b.length() > 0) {
+        b.append(',');
+      }
+      b.append(r[0]).append('-').append(r[1] - 1);
+    }
+    return b.toString();
+  }
+
+  /** @return the ranges written by {@link #toString()} */
+  public static ChunkRanges parse(String ranges, long totalBytes) {
+    final ChunkRanges parsed = new ChunkRanges(totalBytes);
+    for (String range : ranges.split(",")) {
+      final int dash = range.indexOf('-');
+      if (dash > 0) {
+        parsed.add(Long.parseLong(range.substring(0, dash).trim()), Long.parseLong(range.substring(dash + 1).trim()) + 1);
+      }
+    }
+    return parsed;
+  }
+
+}
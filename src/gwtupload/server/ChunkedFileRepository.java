@@ -0,0 +1,30 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A {@link FileRepository} that receives an upload in chunks, so a client can resume a failed
+ * upload from the last byte committed instead of sending the whole file again.
+ */
+public interface ChunkedFileRepository extends FileRepository {
+
+  /**
+   * Writes a chunk at its offset in the file. The bytes received are committed even if the
+   * stream fails, and when the committed ranges cover the whole file it is assembled and sent
+   * by <code>sendData</code> like any other upload. Chunks of the same upload may be saved at
+   * the same time.
+   *
+   * @param length the bytes expected in <code>data</code>
+   * @return the ranges committed so far, including this chunk
+   * @throws UploadErrorException if the chunk doesn't fit the upload, or less than length bytes were received
+   */
+  ChunkRanges saveChunk(Integer fileToken, long offset, long length, long totalBytes, String contentType, InputStream data, HttpServletRequest request)
+      throws IOException, UploadErrorException;
+
+  /** @return the ranges committed for an upload, complete once it has been assembled, or null if nothing was received */
+  ChunkRanges loadChunks(Integer fileToken);
+
+}
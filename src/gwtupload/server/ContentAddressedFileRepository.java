@@ -0,0 +1,25 @@
+package gwtupload.server;
+
+import java.io.IOException;
+
+/**
+ * A repository that knows the digest of the content it stores, so a client that sends the
+ * digest of a file can skip uploading content already stored.
+ */
+public interface ContentAddressedFileRepository extends FileRepository {
+
+  /** @return the name of the {@link java.security.MessageDigest} used, like SHA-256 */
+  String getAlgorithm();
+
+  /** @return the digest of the content of an upload, in lower case hex, or null if it isn't known */
+  String getDigest(Integer fileToken);
+
+  /**
+   * Makes an upload point to content already stored, as if it had been uploaded again.
+   * The digest and size are all the proof the client has the content.
+   *
+   * @return false if no content with this digest and size is stored, or the upload already has content
+   */
+  boolean link(Integer fileToken, String digest, long size) throws IOException;
+
+}
@@ -0,0 +1,22 @@
+package gwtupload.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates named daemon threads, so background work never keeps the container from shutting down. */
+class DaemonThreadFactory implements ThreadFactory {
+
+  private final String name;
+  private final AtomicInteger count = new AtomicInteger();
+
+  DaemonThreadFactory(String name) {
+    this.name = name;
+  }
+
+  public Thread newThread(Runnable r) {
+    final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+
+}
@@ -0,0 +1,474 @@
+package gwtupload.server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Wraps a {@link FileRepository} so each different content is stored once.
+ *
+ * <code>saveData</code> computes the digest of the upload while it is received. When the wrapped
+ * repository is a {@link RemovableFileRepository} the upload is written to it at the same time,
+ * under its own token, and removed again if the content turns out to be stored already, so new
+ * content is written once. Otherwise it's spooled in memory, or in a temporary file when it's
+ * bigger than <code>spoolThreshold</code> bytes, and only content not seen before is written to
+ * the wrapped repository; uploads of the same new content at the same time store it once, the
+ * others wait. Either way content is kept under the token of its first upload; later tokens with
+ * the same digest just point to it, and <code>sendData</code> follows that mapping.
+ *
+ * The mapping is kept in memory, and appended to an index file when one is given so it
+ * survives a restart; lines are written in the order the mapping changes, so the last line
+ * of a digest tells where its content is, and the file is rewritten with just the live
+ * mapping when it's loaded. Progress and errors are passed straight through. Clients can skip
+ * uploading content already stored with {@link #link}; note that the digest and size are taken
+ * as proof of having the content, so whoever knows them can read it.
+ *
+ * Removing an upload drops its mapping; the stored content is removed from the wrapped
+ * repository with the last upload pointing to it.
+ */
+public class DeduplicatingFileRepository implements BulkFileRepository, ContentAddressedFileRepository, RangedFileRepository, RemovableFileRepository, Closeable {
+
+  private static final Logger logger = Logger.getLogger(DeduplicatingFileRepository.class);
+  public static final String DEFAULT_ALGORITHM = "SHA-256";
+  public static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
+  private final FileRepository delegate;
+  private final String algorithm;
+  private final DiskFileItemFactory spool;
+  /** token to the digest of its content */
+  private final ConcurrentHashMap<Integer, String> tokens = new ConcurrentHashMap<Integer, String>();
+  /** digest to the token its content is stored under, done once it's stored */
+  private final ConcurrentHashMap<String, FutureTask<Integer>> contents = new ConcurrentHashMap<String, FutureTask<Integer>>();
+  /** digest to the size of its content */
+  private final ConcurrentHashMap<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+  private final Writer index;
+  /** held while the mapping of a token is changed, so content isn't removed as it's linked */
+  private final Object mapping = new Object();
+
+  public DeduplicatingFileRepository(FileRepository delegate) throws IOException {
+    this(delegate, DEFAULT_ALGORITHM, DEFAULT_SPOOL_THRESHOLD, null, null);
+  }
+
+  /**
+   * @param algorithm the {@link MessageDigest} used to compare contents
+   * @param spoolDirectory where uploads bigger than the threshold are kept while hashed, or null for the system's
+   * @param index where the mapping is saved, or null to keep it in memory only
+   */
+  public DeduplicatingFileRepository(FileRepository delegate, String algorithm, int spoolThreshold, File spoolDirectory, File index) throws IOException {
+    this.delegate = delegate;
+    this.algorithm = algorithm;
+    this.spool = new DiskFileItemFactory(spoolThreshold, spoolDirectory);
+    newDigest(); // fail now if the algorithm isn't available
+    if (index != null) {
+      if (index.isFile()) {
+        loadIndex(index);
+        compactIndex(index);
+      }
+      this.index = new OutputStreamWriter(new FileOutputStream(index, true), "UTF-8");
+    } else {
+      this.index = null;
+    }
+  }
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    if (delegate instanceof RemovableFileRepository) {
+      saveThrough(fileToken, contentType, data, request);
+    } else {
+      saveSpooled(fileToken, contentType, data, request);
+    }
+  }
+
+  /** Writes the upload to the wrapped repository while hashing it, and drops it if its content was already stored. */
+  private void saveThrough(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    final MessageDigest md = newDigest();
+    final CountingInputStream in = new CountingInputStream(new DigestInputStream(data, md));
+    delegate.saveData(fileToken, contentType, in, request);
+    final String digest = toHex(md.digest());
+    final long size = in.getByteCount();
+    Integer stored;
+    synchronized (mapping) {
+      stored = getStored(contents.get(digest));
+      if (stored == null) {
+        contents.put(digest, done(fileToken));
+        sizes.put(digest, size);
+        stored = fileToken;
+      }
+      tokens.put(fileToken, digest);
+      writeIndex(fileToken, stored, digest);
+    }
+    if (!stored.equals(fileToken)) {
+      // the mapping keeps the content alive; removing the copy drops the progress too
+      ((RemovableFileRepository) delegate).remove(Collections.singleton(fileToken));
+      delegate.saveProgress(fileToken, size, size);
+    }
+  }
+
+  /** Spools the upload while hashing it, and writes it to the wrapped repository if its content is new. */
+  private void saveSpooled(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    final MessageDigest md = newDigest();
+    final FileItem spooled = spool.createItem("data", contentType, false, null);
+    try {
+      Streams.copy(new DigestInputStream(data, md), spooled.getOutputStream(), true);
+      final String digest = toHex(md.digest());
+      for (;;) {
+        final Integer stored = store(digest, fileToken, contentType, spooled, request);
+        synchronized (mapping) {
+          if (!stored.equals(getStored(contents.get(digest)))) {
+            continue; // removed meanwhile, store it again
+          }
+          sizes.putIfAbsent(digest, spooled.getSize());
+          tokens.put(fileToken, digest);
+          writeIndex(fileToken, stored, digest);
+        }
+        break;
+      }
+    } finally {
+      spooled.delete();
+    }
+  }
+
+  /** Refuses tokens that already have content, so their mapping and the stored content are left alone. */
+  public boolean link(Integer fileToken, String digest, long size) throws IOException {
+    digest = digest.toLowerCase();
+    if (hasData(fileToken)) {
+      return false;
+    }
+    final Integer stored;
+    synchronized (mapping) {
+      final Long storedSize = sizes.get(digest);
+      if (tokens.containsKey(fileToken)) {
+        return false;
+      }
+      stored = storedSize != null && storedSize.longValue() == size ? getStored(contents.get(digest)) : null;
+      if (stored == null) {
+        return false;
+      }
+      tokens.put(fileToken, digest);
+      try {
+        writeIndex(fileToken, stored, digest);
+      } catch (IOException e) {
+        tokens.remove(fileToken, digest);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+    delegate.saveProgress(fileToken, currentBytes, totalBytes);
+  }
+
+  public void saveProgress(Map<Integer, FileProgress> progress) {
+    if (delegate instanceof BulkFileRepository) {
+      ((BulkFileRepository) delegate).saveProgress(progress);
+    } else {
+      for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+        delegate.saveProgress(e.getKey(), e.getValue().getCurrentBytes(), e.getValue().getTotalBytes());
+      }
+    }
+  }
+
+  public void saveError(Integer fileToken, String message) {
+    delegate.saveError(fileToken, message);
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    return delegate.loadProgress(fileToken);
+  }
+
+  public Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    if (delegate instanceof BulkFileRepository) {
+      return ((BulkFileRepository) delegate).loadProgress(fileTokens);
+    }
+    final Map<Integer, FileProgress> loaded = new HashMap<Integer, FileProgress>();
+    for (Integer fileToken : fileTokens) {
+      loaded.put(fileToken, delegate.loadProgress(fileToken));
+    }
+    return loaded;
+  }
+
+  /** The data of the wrapped repository, with the digest as entity tag. */
+  public StoredData loadData(Integer fileToken, int item) throws IOException {
+    if (item != 0 || !(delegate instanceof RangedFileRepository)) {
+      return null;
+    }
+    final Integer stored = getStoredToken(fileToken);
+    final String digest = tokens.get(fileToken);
+    final StoredData data = ((RangedFileRepository) delegate).loadData(stored != null ? stored : fileToken, 0);
+    if (data == null || stored == null || digest == null) {
+      return data;
+    }
+    return new StoredData(data.getContentType(), data.getSize(), data.getLastModified(), "\"" + digest + "\"") {
+      public void writeTo(long offset, long length, OutputStream out) throws IOException {
+        data.writeTo(offset, length, out);
+      }
+
+      public void close() throws IOException {
+        data.close();
+      }
+    };
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    final Integer stored = getStoredToken(fileToken);
+    delegate.sendData(stored != null ? stored : fileToken, response);
+  }
+
+  public void remove(Collection<Integer> fileTokens) {
+    final Set<Integer> removed = new HashSet<Integer>(fileTokens);
+    synchronized (mapping) {
+      final Set<String> released = new HashSet<String>();
+      for (Integer fileToken : fileTokens) {
+        final String digest = tokens.remove(fileToken);
+        if (digest != null) {
+          released.add(digest);
+        }
+      }
+      final Set<String> referenced = new HashSet<String>(tokens.values());
+      for (String digest : released) {
+        final Integer stored = getStored(contents.get(digest));
+        if (referenced.contains(digest)) {
+          // other uploads still point to it
+          removed.remove(stored);
+        } else {
+          contents.remove(digest);
+          sizes.remove(digest);
+          if (stored != null) {
+            removed.add(stored);
+          }
+        }
+      }
+      try {
+        writeIndex(fileTokens);
+      } catch (IOException e) {
+        logger.warn("Can't write the removed uploads to the index: " + e.getMessage());
+      }
+    }
+    if (delegate instanceof RemovableFileRepository) {
+      ((RemovableFileRepository) delegate).remove(removed);
+    }
+  }
+
+  public Collection<Integer> findExpired(long before) {
+    return delegate instanceof RemovableFileRepository ? ((RemovableFileRepository) delegate).findExpired(before) : new ArrayList<Integer>();
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public String getDigest(Integer fileToken) {
+    return tokens.get(fileToken);
+  }
+
+  /** @return the number of different contents stored */
+  public int getContents() {
+    return contents.size();
+  }
+
+  public void close() throws IOException {
+    if (index != null) {
+      synchronized (index) {
+        index.close();
+      }
+    }
+  }
+
+  /** @return true if the wrapped repository has data under this token, as far as it can tell */
+  private boolean hasData(Integer fileToken) throws IOException {
+    if (delegate instanceof RangedFileRepository) {
+      final StoredData data = ((RangedFileRepository) delegate).loadData(fileToken, 0);
+      if (data != null) {
+        data.close();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return the token the content of an upload is stored under, or null if it isn't known */
+  protected Integer getStoredToken(Integer fileToken) {
+    final String digest = tokens.get(fileToken);
+    return digest != null ? getStored(contents.get(digest)) : null;
+  }
+
+  /** @return the token of content that has been stored, or null if it's being stored or failed */
+  private Integer getStored(FutureTask<Integer> content) {
+    if (content == null || !content.isDone()) {
+      return null;
+    }
+    try {
+      return content.get();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private void writeIndex(Integer fileToken, Integer stored, String digest) throws IOException {
+    if (index != null) {
+      synchronized (index) {
+        index.write(fileToken + " " + stored + " " + digest + " " + sizes.get(digest) + "\n");
+        index.flush();
+      }
+    }
+  }
+
+  /** Appends a line with just the token of each removed upload. */
+  private void writeIndex(Collection<Integer> removed) throws IOException {
+    if (index != null) {
+      synchronized (index) {
+        for (Integer fileToken : removed) {
+          index.write(fileToken + "\n");
+        }
+        index.flush();
+      }
+    }
+  }
+
+  /** Writes the spooled content to the wrapped repository unless it's already there; @return the token it's stored under */
+  private Integer store(String digest, final Integer fileToken, final String contentType, final FileItem spooled, final HttpServletRequest request)
+      throws IOException, UploadErrorException {
+    final FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+      public Integer call() throws Exception {
+        final InputStream in = spooled.getInputStream();
+        try {
+          delegate.saveData(fileToken, contentType, in, request);
+        } finally {
+          IOUtils.closeQuietly(in);
+        }
+        return fileToken;
+      }
+    });
+    for (;;) {
+      FutureTask<Integer> content = contents.putIfAbsent(digest, task);
+      if (content == null) {
+        content = task;
+        task.run();
+      }
+      try {
+        return content.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for the content to be stored");
+      } catch (ExecutionException e) {
+        contents.remove(digest, content);
+        if (content != task) {
+          continue; // the upload storing it failed, store it ourselves
+        }
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof UploadErrorException) {
+          throw (UploadErrorException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
+  private void loadIndex(File file) throws IOException {
+    final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] fields = line.split(" ");
+        if (fields.length == 4) {
+          // the content of a digest removed and uploaded again is stored under the later token
+          contents.put(fields[2], done(Integer.valueOf(fields[1])));
+          sizes.put(fields[2], Long.valueOf(fields[3]));
+          tokens.put(Integer.valueOf(fields[0]), fields[2]);
+        } else if (fields.length == 1 && fields[0].length() > 0) {
+          tokens.remove(Integer.valueOf(fields[0]));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    // content of removed uploads
+    final Set<String> referenced = new HashSet<String>(tokens.values());
+    contents.keySet().retainAll(referenced);
+    sizes.keySet().retainAll(referenced);
+  }
+
+  /** Rewrites the index with a line per upload, dropping the lines of removed and relinked uploads. */
+  private void compactIndex(File file) throws IOException {
+    final File compacted = new File(file.getPath() + ".tmp");
+    final Writer out = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8");
+    try {
+      for (Map.Entry<Integer, String> e : tokens.entrySet()) {
+        out.write(e.getKey() + " " + getStored(contents.get(e.getValue())) + " " + e.getValue() + " " + sizes.get(e.getValue()) + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+      throw new IOException("Can't replace the index " + file + " with " + compacted);
+    }
+  }
+
+  /** @return the content of an upload already stored under this token */
+  private static FutureTask<Integer> done(final Integer stored) {
+    final FutureTask<Integer> content = new FutureTask<Integer>(new Callable<Integer>() {
+      public Integer call() {
+        return stored;
+      }
+    });
+    content.run();
+    return content;
+  }
+
+  private MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Unknown digest algorithm " + algorithm);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+      hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+    }
+    return new String(hex);
+  }
+
+}
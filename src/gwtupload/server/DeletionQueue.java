@@ -0,0 +1,129 @@
+package gwtupload.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Removes uploads from a {@link RemovableFileRepository} in a background thread, so the
+ * request asking for it doesn't wait for files to be deleted.
+ *
+ * Tokens are queued, and the thread removes them <code>batchSize</code> at a time a moment
+ * later, so removals asked for together cost one call. When <code>ttlMillis</code> is greater
+ * than 0, every <code>sweepInterval</code> milliseconds the uploads not written or read for that
+ * long are queued as well, which collects the ones abandoned and the ones never removed.
+ */
+public class DeletionQueue {
+
+  private static final Logger logger = Logger.getLogger(DeletionQueue.class);
+  private static final long BATCH_DELAY = 100;
+  private final RemovableFileRepository repo;
+  private final int batchSize;
+  private final long ttlMillis;
+  private final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param ttlMillis how long an upload is kept since it was last written or read, 0 to keep it until removed
+   * @param sweepInterval milliseconds between looks for expired uploads
+   */
+  public DeletionQueue(RemovableFileRepository repo, int batchSize, long ttlMillis, long sweepInterval) {
+    this.repo = repo;
+    this.batchSize = Math.max(1, batchSize);
+    this.ttlMillis = ttlMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gwtupload-deletion"));
+    if (ttlMillis > 0) {
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            sweep();
+          } catch (RuntimeException e) {
+            logger.error("Error looking for expired uploads: " + e.getMessage(), e);
+          }
+        }
+      }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Queues an upload to be removed. */
+  public void remove(Integer fileToken) {
+    queue.add(fileToken);
+    schedule();
+  }
+
+  /** Queues several uploads to be removed. */
+  public void remove(Collection<Integer> fileTokens) {
+    queue.addAll(fileTokens);
+    schedule();
+  }
+
+  /** Queues the uploads that have expired; done periodically when there is a TTL. */
+  public void sweep() {
+    final Collection<Integer> expired = repo.findExpired(System.currentTimeMillis() - ttlMillis);
+    if (!expired.isEmpty()) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("Removing " + expired.size() + " expired uploads");
+      }
+      remove(expired);
+    }
+  }
+
+  /** Stops the background thread and removes what is still queued. */
+  public void shutdown() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /** @return the number of uploads waiting to be removed */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        scheduler.schedule(new Runnable() {
+          public void run() {
+            // cleared first, so tokens queued while flushing schedule another run
+            scheduled.set(false);
+            try {
+              flush();
+            } catch (RuntimeException e) {
+              logger.error("Error removing uploads: " + e.getMessage(), e);
+            }
+          }
+        }, BATCH_DELAY, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        scheduled.set(false); // shut down, removed by shutdown() or not at all
+      }
+    }
+  }
+
+  private void flush() {
+    for (;;) {
+      final List<Integer> batch = new ArrayList<Integer>(Math.min(batchSize, 64));
+      Integer fileToken;
+      while (batch.size() < batchSize && (fileToken = queue.poll()) != null) {
+        batch.add(fileToken);
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      repo.remove(batch);
+    }
+  }
+
+}
@@ -0,0 +1,425 @@
+package gwtupload.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link FileRepository} that stores uploaded data as files in a directory.
+ *
+ * Data is moved between the request/response streams and the files with
+ * {@link FileChannel#transferFrom} and {@link FileChannel#transferTo}, so the copy is done by
+ * the channel implementation instead of a byte[] loop. Uploads are written to a temporary
+ * file and renamed when complete, so <code>sendData</code> never serves a partial file.
+ *
+ * Files of a multi-file upload after the first are stored as <code>token.item</code>.
+ *
+ * Chunked uploads are written in place into a preallocated <code>token.part</code> file, and
+ * the committed ranges are kept in <code>token.ranges</code> so uploads can be resumed after a
+ * restart. Each chunk is forced to disk before its range is recorded.
+ *
+ * Progress and errors are delegated to another repository, a {@link MemoryFileRepository}
+ * unless one is given.
+ *
+ * Every file of an upload is named after its token, so removing an upload deletes its files by
+ * name, and an upload expires when none of its files changed since the given time; finding
+ * those lists the directory once per call.
+ * Reading an upload touches its <code>.type</code> file, at most once a minute, so uploads still
+ * downloaded don't expire; the data file keeps its date, which is part of its entity tag.
+ */
+public class DiskFileRepository implements BulkFileRepository, MultipleFileRepository, ChunkedFileRepository, RangedFileRepository, RemovableFileRepository {
+
+  private static final Logger logger = Logger.getLogger(DiskFileRepository.class);
+  private static final long TRANSFER_SIZE = 1024 * 1024;
+  private static final String TYPE_SUFFIX = ".type";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String PART_SUFFIX = ".part";
+  private static final String RANGES_SUFFIX = ".ranges";
+  private static final long TOUCH_INTERVAL = 60 * 1000;
+
+  private final File directory;
+  private final FileRepository progress;
+  private final ConcurrentHashMap<Integer, ChunkRanges> chunks = new ConcurrentHashMap<Integer, ChunkRanges>();
+
+  public DiskFileRepository(File directory) {
+    this(directory, new MemoryFileRepository());
+  }
+
+  /** @param progress where progress and error messages are kept */
+  public DiskFileRepository(File directory, FileRepository progress) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Can't create directory " + directory);
+    }
+    this.directory = directory;
+    this.progress = progress;
+  }
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    saveData(fileToken, 0, contentType, data, request);
+  }
+
+  public void saveData(Integer fileToken, int item, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    final File file = dataFile(fileToken, item);
+    final File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+    final FileOutputStream out = new FileOutputStream(temp);
+    boolean written = false;
+    try {
+      final FileChannel channel = out.getChannel();
+      final ReadableByteChannel in = data instanceof ReadableByteChannel ? (ReadableByteChannel) data : Channels.newChannel(data);
+      long position = 0;
+      long n;
+      while ((n = channel.transferFrom(in, position, TRANSFER_SIZE)) > 0) {
+        position += n;
+      }
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+
+    FileUtils.writeStringToFile(new File(directory, file.getName() + TYPE_SUFFIX), contentType != null ? contentType : "", "UTF-8");
+    moveTo(temp, file);
+  }
+
+  public ChunkRanges saveChunk(Integer fileToken, long offset, long length, long totalBytes, String contentType, InputStream data, HttpServletRequest request)
+      throws IOException, UploadErrorException {
+    if (!chunks.containsKey(fileToken) && dataFile(fileToken).isFile()) {
+      return loadChunks(fileToken); // a chunk resent after the upload was assembled
+    }
+    final ChunkRanges ranges = chunksFor(fileToken, totalBytes);
+    if (offset < 0 || length < 0 || offset + length > totalBytes) {
+      throw new UploadErrorException("Chunk " + offset + "+" + length + " is out of the file size " + totalBytes);
+    }
+    final File part = new File(directory, fileToken + PART_SUFFIX);
+    final RandomAccessFile file = new RandomAccessFile(part, "rw");
+    long written = 0;
+    boolean completed = false;
+    try {
+      // transferFrom writes nothing past the end of the file
+      if (file.length() < totalBytes) {
+        file.setLength(totalBytes);
+      }
+      final FileChannel channel = file.getChannel();
+      final ReadableByteChannel in = data instanceof ReadableByteChannel ? (ReadableByteChannel) data : Channels.newChannel(data);
+      long n;
+      while (written < length && (n = channel.transferFrom(in, offset + written, Math.min(TRANSFER_SIZE, length - written))) > 0) {
+        written += n;
+      }
+    } finally {
+      // what arrived before a broken connection is kept, so the client resumes after it
+      try {
+        if (written > 0) {
+          file.getChannel().force(false);
+          completed = ranges.add(offset, offset + written);
+          saveRanges(fileToken, ranges);
+        }
+      } finally {
+        file.close();
+      }
+      if (completed) {
+        FileUtils.writeStringToFile(new File(directory, fileToken + TYPE_SUFFIX), contentType != null ? contentType : "", "UTF-8");
+        moveTo(part, dataFile(fileToken));
+        new File(directory, fileToken + RANGES_SUFFIX).delete();
+        chunks.remove(fileToken, ranges);
+      }
+    }
+    if (written < length) {
+      throw new UploadErrorException("Chunk incomplete, received " + written + " of " + length + " bytes");
+    }
+    return ranges;
+  }
+
+  public ChunkRanges loadChunks(Integer fileToken) {
+    final ChunkRanges ranges = chunks.get(fileToken);
+    if (ranges != null) {
+      return ranges;
+    }
+    final File file = dataFile(fileToken);
+    if (file.isFile()) {
+      final ChunkRanges complete = new ChunkRanges(file.length());
+      complete.add(0, file.length());
+      return complete;
+    }
+    try {
+      return loadRanges(fileToken);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+    progress.saveProgress(fileToken, currentBytes, totalBytes);
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes, int item, int storedItems) {
+    if (progress instanceof MultipleFileRepository) {
+      ((MultipleFileRepository) progress).saveProgress(fileToken, currentBytes, totalBytes, item, storedItems);
+    } else {
+      progress.saveProgress(fileToken, currentBytes, totalBytes);
+    }
+  }
+
+  public void saveProgress(Map<Integer, FileProgress> progress) {
+    if (this.progress instanceof BulkFileRepository) {
+      ((BulkFileRepository) this.progress).saveProgress(progress);
+    } else {
+      for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+        this.progress.saveProgress(e.getKey(), e.getValue().getCurrentBytes(), e.getValue().getTotalBytes());
+      }
+    }
+  }
+
+  public void saveError(Integer fileToken, String message) {
+    progress.saveError(fileToken, message);
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    return progress.loadProgress(fileToken);
+  }
+
+  public Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    if (progress instanceof BulkFileRepository) {
+      return ((BulkFileRepository) progress).loadProgress(fileTokens);
+    }
+    final Map<Integer, FileProgress> loaded = new HashMap<Integer, FileProgress>();
+    for (Integer fileToken : fileTokens) {
+      loaded.put(fileToken, progress.loadProgress(fileToken));
+    }
+    return loaded;
+  }
+
+  public StoredData loadData(Integer fileToken, int item) throws IOException {
+    final File file = dataFile(fileToken, item);
+    final FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    boolean opened = false;
+    try {
+      // the open file keeps its content even if the upload is replaced meanwhile
+      final FileChannel channel = in.getChannel();
+      final long size = channel.size();
+      final long modified = file.lastModified();
+      touch(file);
+      final StoredData data = new StoredData(loadContentType(file), size, modified, "\"" + Long.toHexString(modified) + "-" + Long.toHexString(size) + "\"") {
+        public void writeTo(long offset, long length, OutputStream out) throws IOException {
+          final WritableByteChannel target = Channels.newChannel(out);
+          final long end = offset + length;
+          long position = offset;
+          while (position < end) {
+            position += channel.transferTo(position, Math.min(TRANSFER_SIZE, end - position), target);
+          }
+        }
+
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+      opened = true;
+      return data;
+    } finally {
+      if (!opened) {
+        in.close();
+      }
+    }
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    sendData(fileToken, 0, response);
+  }
+
+  public void sendData(Integer fileToken, int item, HttpServletResponse response) throws IOException {
+    final File file = dataFile(fileToken, item);
+    final FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (IOException e) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    try {
+      final FileChannel channel = in.getChannel();
+      final long size = channel.size();
+      touch(file);
+      response.setContentType(loadContentType(file));
+      if (size <= Integer.MAX_VALUE) {
+        response.setContentLength((int) size);
+      } else {
+        response.setHeader("Content-Length", String.valueOf(size));
+      }
+      final WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+      }
+      response.flushBuffer();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void remove(Collection<Integer> fileTokens) {
+    final Set<Integer> removed = new HashSet<Integer>(fileTokens);
+    for (Integer fileToken : removed) {
+      chunks.remove(fileToken);
+      final FileProgress saved = progress.loadProgress(fileToken);
+      final int items = saved != null ? saved.getItem() : 0;
+      deleteData(dataFile(fileToken));
+      delete(new File(directory, fileToken + PART_SUFFIX));
+      delete(new File(directory, fileToken + RANGES_SUFFIX));
+      // the files of a multi-file upload, up to the last one in the progress and as long as there are more
+      for (int item = 1; deleteData(dataFile(fileToken, item)) || item <= items; item++) {
+        // deleted
+      }
+    }
+    if (progress instanceof RemovableFileRepository) {
+      ((RemovableFileRepository) progress).remove(removed);
+    }
+  }
+
+  public Collection<Integer> findExpired(long before) {
+    final Set<Integer> expired = new HashSet<Integer>();
+    final Set<Integer> active = new HashSet<Integer>();
+    for (File file : listFiles()) {
+      final Integer fileToken = tokenOf(file);
+      if (fileToken != null) {
+        (file.lastModified() < before ? expired : active).add(fileToken);
+      }
+    }
+    if (progress instanceof RemovableFileRepository) {
+      expired.addAll(((RemovableFileRepository) progress).findExpired(before));
+    }
+    expired.removeAll(active);
+    return expired;
+  }
+
+  /** @return the file holding the data of a completed upload */
+  protected File dataFile(Integer fileToken) {
+    return dataFile(fileToken, 0);
+  }
+
+  /** @return the file holding one file of a completed multi-file upload */
+  protected File dataFile(Integer fileToken, int item) {
+    return new File(directory, item == 0 ? fileToken.toString() : fileToken + "." + item);
+  }
+
+  private ChunkRanges chunksFor(Integer fileToken, long totalBytes) throws IOException, UploadErrorException {
+    ChunkRanges ranges = chunks.get(fileToken);
+    if (ranges == null) {
+      final ChunkRanges stored = loadRanges(fileToken);
+      ranges = chunks.putIfAbsent(fileToken, stored != null ? stored : new ChunkRanges(totalBytes));
+      if (ranges == null) {
+        ranges = chunks.get(fileToken);
+      }
+    }
+    if (ranges.getTotalBytes() != totalBytes) {
+      throw new UploadErrorException("Chunk of a " + totalBytes + " bytes file, but the upload has " + ranges.getTotalBytes());
+    }
+    return ranges;
+  }
+
+  /** @return the ranges recorded by a previous run, or null */
+  private ChunkRanges loadRanges(Integer fileToken) throws IOException {
+    final File file = new File(directory, fileToken + RANGES_SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+    final String stored = FileUtils.readFileToString(file, "UTF-8");
+    final int colon = stored.indexOf(':');
+    return ChunkRanges.parse(stored.substring(colon + 1), Long.parseLong(stored.substring(0, colon)));
+  }
+
+  private void saveRanges(Integer fileToken, ChunkRanges ranges) throws IOException {
+    // locked so a chunk that finished earlier can't overwrite the ranges of a later one
+    synchronized (ranges) {
+      FileUtils.writeStringToFile(new File(directory, fileToken + RANGES_SUFFIX), ranges.getTotalBytes() + ":" + ranges, "UTF-8");
+    }
+  }
+
+  /** Deletes a data file with its type and temporary files; @return false if none of them was there */
+  private boolean deleteData(File data) {
+    boolean found = delete(data);
+    found |= delete(new File(directory, data.getName() + TYPE_SUFFIX));
+    found |= delete(new File(directory, data.getName() + TEMP_SUFFIX));
+    return found;
+  }
+
+  /** @return false if the file wasn't there */
+  private static boolean delete(File file) {
+    if (file.delete()) {
+      return true;
+    } else if (file.exists()) {
+      logger.warn("Can't delete " + file);
+      return true;
+    }
+    return false;
+  }
+
+  private File[] listFiles() {
+    final File[] files = directory.listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  /** @return the token a file of the directory belongs to, or null if it isn't one of ours */
+  private static Integer tokenOf(File file) {
+    final String name = file.getName();
+    final int dot = name.indexOf('.');
+    try {
+      return Integer.valueOf(dot < 0 ? name : name.substring(0, dot));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static void moveTo(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      // renameTo doesn't replace an existing file on every platform
+      to.delete();
+      if (!from.renameTo(to)) {
+        from.delete();
+        throw new IOException("Can't rename " + from + " to " + to);
+      }
+    }
+  }
+
+  /** Records that an upload was read in the date of its type file. */
+  private void touch(File data) {
+    final File file = new File(directory, data.getName() + TYPE_SUFFIX);
+    final long now = System.currentTimeMillis();
+    if (now - file.lastModified() > TOUCH_INTERVAL) {
+      file.setLastModified(now); // false when there is no type file, the data file's date is used then
+    }
+  }
+
+  private String loadContentType(File data) throws IOException {
+    final File file = new File(directory, data.getName() + TYPE_SUFFIX);
+    final String type = file.isFile() ? FileUtils.readFileToString(file, "UTF-8") : "";
+    return type.length() > 0 ? type : "application/octet-stream";
+  }
+
+}
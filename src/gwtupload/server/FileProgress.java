@@ -5,11 +5,23 @@ public class FileProgress {
   private final String message;
   private final long currentBytes;
   private final long totalBytes;
+  private final int item;
+  private final int storedItems;
 
   public FileProgress(String message, long currentBytes, long totalBytes) {
+    this(message, currentBytes, totalBytes, 0, 0);
+  }
+
+  /**
+   * @param item the number of the file being received, from 1, or 0 if unknown
+   * @param storedItems the number of files of the request already stored
+   */
+  public FileProgress(String message, long currentBytes, long totalBytes, int item, int storedItems) {
     this.message = message;
     this.currentBytes = currentBytes;
     this.totalBytes = totalBytes;
+    this.item = item;
+    this.storedItems = storedItems;
   }
 
   public String getMessage() {
@@ -28,4 +40,12 @@ public class FileProgress {
     return totalBytes;
   }
 
+  public int getItem() {
+    return item;
+  }
+
+  public int getStoredItems() {
+    return storedItems;
+  }
+
 }
@@ -0,0 +1,48 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A request whose body is read through a filter stream, created the first time it is asked for.
+ */
+abstract class FilteredRequest extends HttpServletRequestWrapper {
+
+  private ServletInputStream in;
+
+  FilteredRequest(HttpServletRequest request) {
+    super(request);
+  }
+
+  /** @return the stream the body is read through */
+  protected abstract InputStream filter(InputStream body) throws IOException;
+
+  public ServletInputStream getInputStream() throws IOException {
+    if (in == null) {
+      final InputStream filtered = filter(super.getInputStream());
+      in = new ServletInputStream() {
+        public int read() throws IOException {
+          return filtered.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+          return filtered.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+          return filtered.available();
+        }
+
+        public void close() throws IOException {
+          filtered.close();
+        }
+      };
+    }
+    return in;
+  }
+
+}
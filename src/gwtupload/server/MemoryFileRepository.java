@@ -0,0 +1,482 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A {@link FileRepository} that keeps progress and uploaded data in memory.
+ *
+ * Entries live in a {@link ConcurrentHashMap}, so status polls for different tokens don't
+ * contend on a single monitor. Each entry keeps its progress in primitive fields and hands
+ * out a cached {@link FileProgress} that is only rebuilt after the progress changes.
+ *
+ * Entries not touched for <code>ttlMillis</code> are evicted, and when the stored data goes
+ * over <code>maxBytes</code> the least recently used uploads are dropped first. Chunked uploads
+ * are assembled in a buffer of the file size, counted against the budget from the first chunk,
+ * so uploads that are never completed are evicted like stored data. An entry is marked when
+ * it's evicted, and writes that still hold it go to a new entry instead.
+ */
+public class MemoryFileRepository implements BulkFileRepository, MultipleFileRepository, ChunkedFileRepository, RangedFileRepository, RemovableFileRepository {
+
+  public static final long DEFAULT_TTL = 30 * 60 * 1000L; // 30 minutes
+  public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024L; // 64MB
+  private static final long MIN_SWEEP_INTERVAL = 1000L;
+  private static final FileProgress NO_PROGRESS = new FileProgress(null, 0, 0);
+
+  private final ConcurrentHashMap<Integer, Entry> entries;
+  private final long ttlMillis;
+  private final long maxBytes;
+  private final long sweepInterval;
+  private final AtomicLong storedBytes = new AtomicLong();
+  private final AtomicLong nextSweep = new AtomicLong();
+  private final ReentrantLock evictLock = new ReentrantLock();
+
+  public MemoryFileRepository() {
+    this(DEFAULT_TTL, DEFAULT_MAX_BYTES);
+  }
+
+  public MemoryFileRepository(long ttlMillis, long maxBytes) {
+    this(ttlMillis, maxBytes, 16);
+  }
+
+  /** @param concurrencyLevel the estimated number of threads updating entries at the same time */
+  public MemoryFileRepository(long ttlMillis, long maxBytes, int concurrencyLevel) {
+    this.entries = new ConcurrentHashMap<Integer, Entry>(64, 0.75f, concurrencyLevel);
+    this.ttlMillis = ttlMillis;
+    this.maxBytes = maxBytes;
+    this.sweepInterval = Math.max(MIN_SWEEP_INTERVAL, ttlMillis / 10);
+    this.nextSweep.set(System.currentTimeMillis() + sweepInterval);
+  }
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    saveData(fileToken, 0, contentType, data, request);
+  }
+
+  public void saveData(Integer fileToken, int item, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    final byte[] bytes = IOUtils.toByteArray(data);
+    if (bytes.length > maxBytes) {
+      throw new UploadErrorException("File is too large: " + bytes.length + " bytes");
+    }
+    final Data stored = new Data(contentType, bytes);
+    while (!entryFor(fileToken).setData(item, stored, storedBytes)) {
+      // evicted meanwhile, stored in a new entry
+    }
+    if (storedBytes.get() > maxBytes) {
+      evictOverBudget();
+    }
+    maybeSweep();
+  }
+
+  public ChunkRanges saveChunk(Integer fileToken, long offset, long length, long totalBytes, String contentType, InputStream data, HttpServletRequest request)
+      throws IOException, UploadErrorException {
+    if (totalBytes > maxBytes || totalBytes > Integer.MAX_VALUE) {
+      throw new UploadErrorException("File is too large: " + totalBytes + " bytes");
+    } else if (offset < 0 || length < 0 || offset + length > totalBytes) {
+      throw new UploadErrorException("Chunk " + offset + "+" + length + " is out of the file size " + totalBytes);
+    }
+    Entry entry;
+    Chunks chunks;
+    do {
+      entry = entryFor(fileToken);
+      if (entry.chunks == null && entry.getData(0) != null) {
+        return loadChunks(fileToken); // a chunk resent after the upload was assembled
+      }
+      chunks = entry.startChunks(totalBytes, storedBytes);
+    } while (chunks == null); // evicted meanwhile
+    if (storedBytes.get() > maxBytes) {
+      evictOverBudget();
+    }
+    if (chunks.ranges.getTotalBytes() != totalBytes) {
+      throw new UploadErrorException("Chunk of a " + totalBytes + " bytes file, but the upload has " + chunks.ranges.getTotalBytes());
+    }
+    // chunks write disjoint parts of the buffer, a chunk sent twice writes the same bytes
+    int written = 0;
+    try {
+      int n;
+      while (written < length && (n = data.read(chunks.buffer, (int) offset + written, (int) length - written)) > 0) {
+        written += n;
+      }
+    } finally {
+      if (written > 0 && chunks.ranges.add(offset, offset + written)) {
+        // the buffer holds the whole file, kept in a new entry if this one was evicted
+        final Data assembled = new Data(contentType, chunks.buffer);
+        while (!entry.setData(0, assembled, storedBytes)) {
+          entry = entryFor(fileToken);
+        }
+        entry.finishChunks(chunks, storedBytes);
+        if (storedBytes.get() > maxBytes) {
+          evictOverBudget();
+        }
+      }
+    }
+    maybeSweep();
+    if (written < length) {
+      throw new UploadErrorException("Chunk incomplete, received " + written + " of " + length + " bytes");
+    } else if (entry.isEvicted()) {
+      // the chunks received so far were dropped, the client resumes from what is stored now
+      throw new UploadErrorException("Upload was evicted before it was complete");
+    }
+    return chunks.ranges;
+  }
+
+  public ChunkRanges loadChunks(Integer fileToken) {
+    final Entry entry = entries.get(fileToken);
+    if (entry == null) {
+      return null;
+    }
+    final Chunks chunks = entry.chunks;
+    if (chunks != null) {
+      return chunks.ranges;
+    }
+    final Data data = entry.getData(0);
+    if (data == null) {
+      return null;
+    }
+    final ChunkRanges complete = new ChunkRanges(data.bytes.length);
+    complete.add(0, data.bytes.length);
+    return complete;
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+    while (!entryFor(fileToken).setProgress(currentBytes, totalBytes)) {
+      // evicted meanwhile, saved in a new entry
+    }
+    maybeSweep();
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes, int item, int storedItems) {
+    while (!entryFor(fileToken).setProgress(currentBytes, totalBytes, item, storedItems)) {
+      // evicted meanwhile, saved in a new entry
+    }
+    maybeSweep();
+  }
+
+  public void saveProgress(Map<Integer, FileProgress> progress) {
+    for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+      final FileProgress p = e.getValue();
+      while (!entryFor(e.getKey()).setProgress(p.getCurrentBytes(), p.getTotalBytes(), p.getItem(), p.getStoredItems())) {
+        // evicted meanwhile, saved in a new entry
+      }
+    }
+    maybeSweep();
+  }
+
+  public void saveError(Integer fileToken, String message) {
+    while (!entryFor(fileToken).setMessage(message)) {
+      // evicted meanwhile, saved in a new entry
+    }
+    maybeSweep();
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    final Entry entry = entries.get(fileToken);
+    if (entry == null) {
+      return NO_PROGRESS;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return entry.getProgress();
+  }
+
+  public Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    final Map<Integer, FileProgress> progress = new HashMap<Integer, FileProgress>();
+    for (Integer fileToken : fileTokens) {
+      progress.put(fileToken, loadProgress(fileToken));
+    }
+    return progress;
+  }
+
+  public StoredData loadData(Integer fileToken, int item) {
+    final Entry entry = entries.get(fileToken);
+    final Data data = entry != null ? entry.getData(item) : null;
+    if (data == null) {
+      return null;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return new StoredData(data.contentType, data.bytes.length, data.stored, "\"" + Long.toHexString(data.version) + "\"") {
+      public void writeTo(long offset, long length, OutputStream out) throws IOException {
+        out.write(data.bytes, (int) offset, (int) length);
+      }
+    };
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    sendData(fileToken, 0, response);
+  }
+
+  public void sendData(Integer fileToken, int item, HttpServletResponse response) throws IOException {
+    final Entry entry = entries.get(fileToken);
+    final Data data = entry != null ? entry.getData(item) : null;
+    if (data == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    response.setContentType(data.contentType != null ? data.contentType : "application/octet-stream");
+    response.setContentLength(data.bytes.length);
+    final OutputStream out = response.getOutputStream();
+    out.write(data.bytes);
+    out.flush();
+  }
+
+  public void remove(Collection<Integer> fileTokens) {
+    for (Integer fileToken : fileTokens) {
+      final Entry entry = entries.get(fileToken);
+      if (entry != null) {
+        evict(fileToken, entry);
+      }
+    }
+  }
+
+  public Collection<Integer> findExpired(long before) {
+    final List<Integer> expired = new ArrayList<Integer>();
+    for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+      if (e.getValue().lastAccess < before) {
+        expired.add(e.getKey());
+      }
+    }
+    return expired;
+  }
+
+  /** @return the number of bytes of uploaded data currently held */
+  public long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  private Entry entryFor(Integer fileToken) {
+    Entry entry = entries.get(fileToken);
+    if (entry == null) {
+      final Entry created = new Entry();
+      entry = entries.putIfAbsent(fileToken, created);
+      if (entry == null) {
+        entry = created;
+      }
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return entry;
+  }
+
+  /** Removes an entry, marked under its lock so no write that still holds it changes the stored bytes afterwards. */
+  private void evict(Integer fileToken, Entry entry) {
+    synchronized (entry) {
+      if (entries.remove(fileToken, entry)) {
+        storedBytes.addAndGet(-entry.clearData());
+      }
+    }
+  }
+
+  /** Drops expired entries, at most once per sweep interval and only from one thread at a time. */
+  private void maybeSweep() {
+    final long now = System.currentTimeMillis();
+    final long next = nextSweep.get();
+    if (now < next || !nextSweep.compareAndSet(next, now + sweepInterval)) {
+      return;
+    }
+    final long expiredBefore = now - ttlMillis;
+    for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+      if (e.getValue().lastAccess < expiredBefore) {
+        evict(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /** Drops the least recently used data until the repository is back under its memory budget. */
+  private void evictOverBudget() {
+    if (!evictLock.tryLock()) {
+      return; // another thread is already evicting
+    }
+    try {
+      final List<Candidate> candidates = new ArrayList<Candidate>();
+      for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+        if (e.getValue().dataBytes > 0) {
+          candidates.add(new Candidate(e.getKey(), e.getValue()));
+        }
+      }
+      Collections.sort(candidates);
+      for (int i = 0; i < candidates.size() && storedBytes.get() > maxBytes; i++) {
+        evict(candidates.get(i).fileToken, candidates.get(i).entry);
+      }
+    } finally {
+      evictLock.unlock();
+    }
+  }
+
+  /** An eviction candidate, with its access time captured so sorting sees stable values. */
+  private static class Candidate implements Comparable<Candidate> {
+    final Integer fileToken;
+    final Entry entry;
+    final long lastAccess;
+
+    Candidate(Integer fileToken, Entry entry) {
+      this.fileToken = fileToken;
+      this.entry = entry;
+      this.lastAccess = entry.lastAccess;
+    }
+
+    public int compareTo(Candidate o) {
+      return lastAccess < o.lastAccess ? -1 : lastAccess == o.lastAccess ? 0 : 1;
+    }
+  }
+
+  /** The content of one uploaded file. */
+  static class Data {
+    // versions start from the clock so entity tags aren't reused after a restart
+    private static final AtomicLong versions = new AtomicLong(System.currentTimeMillis() << 16);
+    final String contentType;
+    final byte[] bytes;
+    final long stored = System.currentTimeMillis();
+    final long version = versions.incrementAndGet();
+
+    Data(String contentType, byte[] bytes) {
+      this.contentType = contentType;
+      this.bytes = bytes;
+    }
+  }
+
+  /** A chunked upload being assembled. */
+  static class Chunks {
+    final ChunkRanges ranges;
+    final byte[] buffer;
+
+    Chunks(long totalBytes) {
+      this.ranges = new ChunkRanges(totalBytes);
+      this.buffer = new byte[(int) totalBytes];
+    }
+  }
+
+  /** Progress and data of one upload; progress writes only lock the entry itself. */
+  static class Entry {
+    private static final Data[] NO_DATA = new Data[0];
+    private long currentBytes;
+    private long totalBytes;
+    private int item;
+    private int storedItems;
+    private String message;
+    private Data[] data = NO_DATA;
+    private volatile FileProgress snapshot = NO_PROGRESS;
+    private boolean evicted;
+    volatile Chunks chunks;
+    volatile long dataBytes;
+    volatile long lastAccess;
+
+    /** @return false if the entry was evicted, so it has to be saved in a new one; same for the other setters */
+    synchronized boolean setProgress(long currentBytes, long totalBytes) {
+      if (evicted) {
+        return false;
+      }
+      this.currentBytes = currentBytes;
+      this.totalBytes = totalBytes;
+      snapshot = null;
+      return true;
+    }
+
+    synchronized boolean setProgress(long currentBytes, long totalBytes, int item, int storedItems) {
+      if (evicted) {
+        return false;
+      }
+      this.currentBytes = currentBytes;
+      this.totalBytes = totalBytes;
+      this.item = item;
+      this.storedItems = storedItems;
+      snapshot = null;
+      return true;
+    }
+
+    synchronized boolean setMessage(String message) {
+      if (evicted) {
+        return false;
+      }
+      this.message = message;
+      snapshot = null;
+      return true;
+    }
+
+    /** Stores data, adding its size less the size of the data replaced to <code>stored</code>. */
+    synchronized boolean setData(int item, Data data, AtomicLong stored) {
+      if (evicted) {
+        return false;
+      }
+      if (item >= this.data.length) {
+        final Data[] grown = new Data[item + 1];
+        System.arraycopy(this.data, 0, grown, 0, this.data.length);
+        this.data = grown;
+      }
+      final long replaced = this.data[item] != null ? this.data[item].bytes.length : 0;
+      this.data[item] = data;
+      dataBytes += data.bytes.length - replaced;
+      stored.addAndGet(data.bytes.length - replaced);
+      return true;
+    }
+
+    /**
+     * Allocates the buffer of a chunked upload the first time, counting it in <code>stored</code> until it's finished or cleared.
+     *
+     * @return null if the entry was evicted
+     */
+    synchronized Chunks startChunks(long totalBytes, AtomicLong stored) {
+      if (evicted) {
+        return null;
+      } else if (chunks == null) {
+        chunks = new Chunks(totalBytes);
+        dataBytes += totalBytes;
+        stored.addAndGet(totalBytes);
+      }
+      return chunks;
+    }
+
+    /** Releases the buffer of a chunked upload, which is counted as data once assembled. */
+    synchronized void finishChunks(Chunks finished, AtomicLong stored) {
+      if (chunks == finished) {
+        chunks = null;
+        dataBytes -= finished.buffer.length;
+        stored.addAndGet(-finished.buffer.length);
+      }
+    }
+
+    synchronized Data getData(int item) {
+      return item >= 0 && item < data.length ? data[item] : null;
+    }
+
+    /** Marks the entry as evicted; @return the size of the data dropped */
+    synchronized long clearData() {
+      evicted = true;
+      final long cleared = dataBytes;
+      data = NO_DATA;
+      chunks = null;
+      dataBytes = 0;
+      return cleared;
+    }
+
+    synchronized boolean isEvicted() {
+      return evicted;
+    }
+
+    FileProgress getProgress() {
+      FileProgress p = snapshot;
+      if (p == null) {
+        synchronized (this) {
+          if (snapshot == null) {
+            snapshot = new FileProgress(message, currentBytes, totalBytes, item, storedItems);
+          }
+          p = snapshot;
+        }
+      }
+      return p;
+    }
+  }
+
+}
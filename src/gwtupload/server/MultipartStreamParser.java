@@ -0,0 +1,447 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.NoSuchElementException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.MultipartStream.MalformedStreamException;
+import org.apache.commons.fileupload.ProgressListener;
+
+/**
+ * A streaming multipart/form-data parser, an alternative to commons-fileupload's
+ * <code>getItemIterator</code> for the upload path.
+ *
+ * The request is read into one large buffer, reused by the thread for the next request, and
+ * boundaries are found with a Horspool skip table, so most bytes are looked at once and
+ * skipped in steps of up to the boundary length. Part data is copied straight from that
+ * buffer to the caller; the part streams are also {@link ReadableByteChannel}s, so channel
+ * based repositories read them without another copy. The {@link ProgressListener} is told
+ * once per <code>progressStep</code> bytes instead of once per block.
+ *
+ * Like the iterator of commons-fileupload, a part must be read before asking for the next
+ * one, and what's left of it is skipped. Header values are decoded as ISO-8859-1.
+ */
+public class MultipartStreamParser implements FileItemIterator {
+
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  public static final long DEFAULT_PROGRESS_STEP = 256 * 1024;
+  private static final int MAX_HEADER_SIZE = 16 * 1024;
+  private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+  private static final ThreadLocal<SoftReference<byte[]>> buffers = new ThreadLocal<SoftReference<byte[]>>();
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private final byte[] delimiter;
+  private final int[] skip = new int[256];
+  private final ProgressListener listener;
+  private final long contentLength;
+  private final long sizeMax;
+  private final long progressStep;
+
+  private int head;
+  private int tail;
+  /** where the delimiter starts in the buffer, or -1 if it isn't in the buffered bytes */
+  private int delimiterAt;
+  /** part data ends here until more bytes are read */
+  private int dataEnd;
+  private boolean eof;
+  private boolean finished;
+  private long bytesRead;
+  private long reportedBytes;
+  private int items;
+  private Part current;
+  private Part pending;
+
+  /**
+   * @param listener told about the bytes read, or null
+   * @param sizeMax the maximum bytes of the request, or -1 for no limit
+   */
+  public MultipartStreamParser(HttpServletRequest request, int bufferSize, long progressStep, long sizeMax, ProgressListener listener)
+      throws IOException, FileUploadException {
+    this(request.getInputStream(), getBoundary(request.getContentType()), request.getContentLength(), bufferSize, progressStep, sizeMax, listener);
+  }
+
+  public MultipartStreamParser(InputStream in, byte[] boundary, long contentLength, int bufferSize, long progressStep, long sizeMax, ProgressListener listener) {
+    this.in = in;
+    this.delimiter = new byte[boundary.length + 4];
+    delimiter[0] = '\r';
+    delimiter[1] = '\n';
+    delimiter[2] = '-';
+    delimiter[3] = '-';
+    System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+    this.buffer = borrowBuffer(Math.max(bufferSize, MAX_HEADER_SIZE + 2 * delimiter.length));
+    this.contentLength = contentLength;
+    this.progressStep = progressStep;
+    this.sizeMax = sizeMax;
+    this.listener = listener;
+
+    for (int i = 0; i < skip.length; i++) {
+      skip[i] = delimiter.length;
+    }
+    for (int i = 0; i < delimiter.length - 1; i++) {
+      skip[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+    }
+
+    // the first boundary has no line break before it, pretend there was one
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+    tail = 2;
+    scan();
+  }
+
+  /** @return the boundary of a multipart content type */
+  public static byte[] getBoundary(String contentType) throws FileUploadException {
+    final int i = contentType != null ? contentType.toLowerCase().indexOf("boundary=") : -1;
+    if (i < 0 || !contentType.toLowerCase().startsWith("multipart/")) {
+      throw new FileUploadException("The request isn't multipart: " + contentType);
+    }
+    String boundary = contentType.substring(i + "boundary=".length());
+    final int end = boundary.indexOf(';');
+    boundary = (end >= 0 ? boundary.substring(0, end) : boundary).trim();
+    if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+      boundary = boundary.substring(1, boundary.length() - 1);
+    }
+    return ascii(boundary);
+  }
+
+  public boolean hasNext() throws FileUploadException, IOException {
+    if (pending == null && !finished) {
+      if (current != null) {
+        current.skipRest();
+      }
+      pending = readPart();
+    }
+    return pending != null;
+  }
+
+  public FileItemStream next() throws FileUploadException, IOException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    current = pending;
+    pending = null;
+    return current;
+  }
+
+  /** @return the bytes of the request read so far */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /** Skips the delimiter the buffer is at, and reads the headers of the next part. */
+  private Part readPart() throws IOException {
+    // the data of the previous part, or the preamble, ends at the delimiter
+    while (delimiterAt != head) {
+      if (head < dataEnd) {
+        head = dataEnd;
+      } else if (eof) {
+        throw new MalformedStreamException("Stream ended unexpectedly");
+      } else {
+        fill();
+      }
+    }
+    require(delimiter.length + 2);
+    head += delimiter.length;
+    if (buffer[head] == '-' && buffer[head + 1] == '-') {
+      // read the epilogue too, so the last progress reported is the whole request
+      finished = true;
+      while (!eof) {
+        head = tail;
+        fill();
+      }
+      report();
+      return null;
+    }
+    final int headersEnd = indexOf(HEADER_END, head);
+    if (headersEnd < 0) {
+      throw new MalformedStreamException("Part headers are too long");
+    }
+    final Part part = new Part(latin1(buffer, head, headersEnd - head));
+    head = headersEnd + HEADER_END.length;
+    scan();
+    items++;
+    report();
+    return part;
+  }
+
+  /** Reads until <code>n</code> bytes are buffered after the head, or fails. */
+  private void require(int n) throws IOException {
+    while (tail - head < n) {
+      if (eof) {
+        throw new MalformedStreamException("Stream ended unexpectedly");
+      }
+      fill();
+    }
+  }
+
+  /** @return where the bytes of <code>pattern</code> end after <code>from</code>, reading as needed */
+  private int indexOf(byte[] pattern, int from) throws IOException {
+    int searched = from;
+    for (;;) {
+      for (int i = searched; i <= tail - pattern.length; i++) {
+        int j = 0;
+        while (j < pattern.length && buffer[i + j] == pattern[j]) {
+          j++;
+        }
+        if (j == pattern.length) {
+          return i;
+        }
+      }
+      if (eof || tail - head > MAX_HEADER_SIZE) {
+        return -1;
+      }
+      searched = Math.max(head, tail - pattern.length + 1) - head;
+      fill();
+      searched += head;
+    }
+  }
+
+  /** Moves the unread bytes to the start of the buffer, and reads more. */
+  private void fill() throws IOException {
+    if (head > 0) {
+      System.arraycopy(buffer, head, buffer, 0, tail - head);
+      tail -= head;
+      head = 0;
+    }
+    final int n = in.read(buffer, tail, buffer.length - tail);
+    if (n < 0) {
+      eof = true;
+    } else {
+      tail += n;
+      bytesRead += n;
+      if (sizeMax >= 0 && bytesRead > sizeMax) {
+        throw new SizeLimitException(sizeMax, contentLength > 0 ? contentLength : bytesRead);
+      }
+    }
+    if (eof || bytesRead - reportedBytes >= progressStep) {
+      report();
+    }
+    scan();
+  }
+
+  private void report() {
+    reportedBytes = bytesRead;
+    if (listener != null) {
+      listener.update(bytesRead, contentLength, items);
+    }
+  }
+
+  /** Looks for the delimiter in the unread bytes with the skip table, and sets where the part data ends. */
+  private void scan() {
+    final int last = delimiter.length - 1;
+    int i = head;
+    while (i + last < tail) {
+      int j = last;
+      while (j >= 0 && buffer[i + j] == delimiter[j]) {
+        j--;
+      }
+      if (j < 0) {
+        delimiterAt = i;
+        dataEnd = i;
+        return;
+      }
+      i += skip[buffer[i + last] & 0xff];
+    }
+    // the end of the buffer might be the start of a delimiter
+    delimiterAt = -1;
+    dataEnd = eof ? tail : Math.max(head, tail - last);
+  }
+
+  private static byte[] borrowBuffer(int size) {
+    final SoftReference<byte[]> ref = buffers.get();
+    byte[] buffer = ref != null ? ref.get() : null;
+    if (buffer == null || buffer.length != size) {
+      buffer = new byte[size];
+      buffers.set(new SoftReference<byte[]>(buffer));
+    }
+    return buffer;
+  }
+
+  private static byte[] ascii(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String latin1(byte[] b, int off, int len) {
+    try {
+      return new String(b, off, len, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** @return the value of a parameter in a header like <code>form-data; name="file"</code> */
+  private static String getParameter(String header, String name) {
+    if (header == null) {
+      return null;
+    }
+    for (String param : header.split(";")) {
+      final int eq = param.indexOf('=');
+      if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+        final String value = param.substring(eq + 1).trim();
+        return value.length() > 1 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+      }
+    }
+    return null;
+  }
+
+  /** Thrown while reading when the request is bigger than the size limit. */
+  public static class SizeLimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final long permitted;
+    private final long actual;
+
+    SizeLimitException(long permitted, long actual) {
+      super("The request was rejected because its size exceeds the configured maximum (" + permitted + ")");
+      this.permitted = permitted;
+      this.actual = actual;
+    }
+
+    /** @return the exception commons-fileupload throws for the same error */
+    public SizeLimitExceededException toFileUploadException() {
+      return new SizeLimitExceededException(getMessage(), actual, permitted);
+    }
+  }
+
+  /** One part of the request, read from the parser's buffer. */
+  private class Part extends InputStream implements FileItemStream, ReadableByteChannel {
+    private final String fieldName;
+    private final String fileName;
+    private final String contentType;
+    private boolean opened;
+    private boolean done;
+
+    Part(String headers) {
+      String disposition = null;
+      String type = null;
+      for (String line : headers.split("\r\n")) {
+        final int colon = line.indexOf(':');
+        if (colon > 0) {
+          final String name = line.substring(0, colon).trim();
+          if (name.equalsIgnoreCase("Content-Disposition")) {
+            disposition = line.substring(colon + 1).trim();
+          } else if (name.equalsIgnoreCase("Content-Type")) {
+            type = line.substring(colon + 1).trim();
+          }
+        }
+      }
+      this.fieldName = getParameter(disposition, "name");
+      this.fileName = getParameter(disposition, "filename");
+      this.contentType = type;
+    }
+
+    public InputStream openStream() throws IOException {
+      if (opened) {
+        throw new IllegalStateException("The stream was already opened");
+      }
+      opened = true;
+      return this;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getName() {
+      return fileName;
+    }
+
+    public String getFieldName() {
+      return fieldName;
+    }
+
+    public boolean isFormField() {
+      return fileName == null;
+    }
+
+    /** @return the bytes that can be read without reading the request, or -1 at the end of the part */
+    private int available(boolean block) throws IOException {
+      if (done || current != this) {
+        return -1;
+      }
+      while (head == dataEnd) {
+        if (delimiterAt == head) {
+          done = true;
+          return -1;
+        } else if (eof) {
+          throw new MalformedStreamException("Stream ended unexpectedly");
+        } else if (!block) {
+          return 0;
+        }
+        fill();
+      }
+      return dataEnd - head;
+    }
+
+    public int read() throws IOException {
+      if (available(true) < 0) {
+        return -1;
+      }
+      return buffer[head++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      final int n = Math.min(len, available(true));
+      if (n < 0) {
+        return -1;
+      }
+      System.arraycopy(buffer, head, b, off, n);
+      head += n;
+      return n;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+      if (!dst.hasRemaining()) {
+        return 0;
+      }
+      final int n = Math.min(dst.remaining(), available(true));
+      if (n < 0) {
+        return -1;
+      }
+      dst.put(buffer, head, n);
+      head += n;
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      final int skipped = (int) Math.min(n, Math.max(0, available(true)));
+      head += skipped;
+      return skipped;
+    }
+
+    public int available() throws IOException {
+      return Math.max(0, available(false));
+    }
+
+    public boolean isOpen() {
+      return !done;
+    }
+
+    /** The rest of the part is skipped by the parser when it moves to the next one. */
+    public void close() {
+    }
+
+    void skipRest() throws IOException {
+      while (available(true) >= 0) {
+        head = dataEnd;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,30 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link FileRepository} that keeps several files under one token, for requests that post
+ * more than one file. Items are numbered from 0 in the order they appear in the request, and
+ * item 0 is what the single file methods save and send.
+ */
+public interface MultipleFileRepository extends FileRepository {
+
+  /**
+   * Save the data of one file of the upload; may be called from a thread other than the
+   * request's, and for different items at the same time.
+   */
+  void saveData(Integer fileToken, int item, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException;
+
+  /**
+   * Saves the bytes received for the whole request, with the number of the file being
+   * received (from 1) and how many files have been stored so far.
+   */
+  void saveProgress(Integer fileToken, long currentBytes, long totalBytes, int item, int storedItems);
+
+  void sendData(Integer fileToken, int item, HttpServletResponse response) throws IOException;
+
+}
@@ -0,0 +1,56 @@
+package gwtupload.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.fileupload.ProgressListener;
+
+/**
+ * Reports the bytes read from a request body to a {@link ProgressListener}, for requests that
+ * aren't parsed by commons-fileupload, like the chunks of a resumable upload.
+ */
+class ProgressInputStream extends FilterInputStream {
+
+  private final ProgressListener listener;
+  private final long totalBytes;
+  private long currentBytes;
+
+  /** @param currentBytes the bytes of the upload received before this stream */
+  ProgressInputStream(InputStream in, ProgressListener listener, long currentBytes, long totalBytes) {
+    super(in);
+    this.listener = listener;
+    this.currentBytes = currentBytes;
+    this.totalBytes = totalBytes;
+  }
+
+  public int read() throws IOException {
+    final int b = super.read();
+    if (b >= 0) {
+      update(1);
+    }
+    return b;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    final int n = super.read(b, off, len);
+    if (n > 0) {
+      update(n);
+    }
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    final long skipped = super.skip(n);
+    if (skipped > 0) {
+      update(skipped);
+    }
+    return skipped;
+  }
+
+  private void update(long n) {
+    currentBytes += n;
+    listener.update(Math.min(currentBytes, totalBytes), totalBytes, 1);
+  }
+
+}
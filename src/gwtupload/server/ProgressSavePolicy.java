@@ -0,0 +1,23 @@
+package gwtupload.server;
+
+/**
+ * Decides when {@link UploadListener} saves the progress of an upload into the {@link FileRepository}.
+ *
+ * A policy is shared by all the uploads of a servlet, so implementations must be thread-safe,
+ * and they are called for every block read, so they shouldn't allocate.
+ */
+public interface ProgressSavePolicy {
+
+  /**
+   * @param elapsedNanos time since the progress was last saved
+   * @param savedBytes bytes received when the progress was last saved
+   * @param currentBytes bytes received so far
+   * @param totalBytes expected bytes, or -1 if unknown
+   * @return true to save the progress now
+   */
+  boolean shouldSave(long elapsedNanos, long savedBytes, long currentBytes, long totalBytes);
+
+  /** Called after each save with the time the repository took, so the policy can adapt to the backend. */
+  void saved(long latencyNanos);
+
+}
@@ -0,0 +1,17 @@
+package gwtupload.server;
+
+import java.io.IOException;
+
+/**
+ * A repository that describes the data it stores, so the servlet can answer downloads with
+ * byte ranges, cache validators and <code>304 Not Modified</code> instead of the whole file.
+ */
+public interface RangedFileRepository extends FileRepository {
+
+  /**
+   * @param item the file of a multi-file upload, 0 for the first or only one
+   * @return the stored data, or null to send it with <code>sendData</code>
+   */
+  StoredData loadData(Integer fileToken, int item) throws IOException;
+
+}
@@ -0,0 +1,20 @@
+package gwtupload.server;
+
+import java.util.Collection;
+
+/**
+ * A repository that can delete uploads, so progress records and stored data don't grow
+ * without bound. Uploads are removed in batches, since the caller usually collects them.
+ */
+public interface RemovableFileRepository extends FileRepository {
+
+  /** Deletes the progress, the error and every stored file of the uploads; unknown tokens are ignored. */
+  void remove(Collection<Integer> fileTokens);
+
+  /**
+   * @param before milliseconds since the epoch
+   * @return the uploads not written or read since <code>before</code>, finished or not
+   */
+  Collection<Integer> findExpired(long before);
+
+}
@@ -0,0 +1,70 @@
+package gwtupload.server;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link CancellationNotifier} for clusters without a message bus.
+ *
+ * The servlet already saves the "cancelled" message into the repository, so publishing is a
+ * noop; instead one background thread per node checks the uploads running in that node and
+ * cancels the ones that have a message. Upload threads never read the repository themselves.
+ */
+public class RepositoryCancellationNotifier implements CancellationNotifier {
+
+  private static final Logger logger = Logger.getLogger(RepositoryCancellationNotifier.class);
+  private final FileRepository repo;
+  private final long interval;
+  private ScheduledExecutorService scheduler;
+
+  /** @param interval milliseconds between checks */
+  public RepositoryCancellationNotifier(FileRepository repo, long interval) {
+    this.repo = repo;
+    this.interval = interval;
+  }
+
+  public void start(final CancellationRegistry registry) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gwtupload-cancel"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          if (repo instanceof BulkFileRepository) {
+            final Set<Integer> active = new HashSet<Integer>(registry.getActiveTokens());
+            if (!active.isEmpty()) {
+              for (Map.Entry<Integer, FileProgress> e : ((BulkFileRepository) repo).loadProgress(active).entrySet()) {
+                if (e.getValue().getMessage() != null) {
+                  registry.cancel(e.getKey());
+                }
+              }
+            }
+          } else {
+            for (Integer fileToken : registry.getActiveTokens()) {
+              if (repo.loadProgress(fileToken).getMessage() != null) {
+                registry.cancel(fileToken);
+              }
+            }
+          }
+        } catch (RuntimeException e) {
+          logger.error("Error checking cancelled uploads: " + e.getMessage(), e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public void publish(Integer fileToken) {
+    // the cancelled message saved by the servlet is picked up by the other nodes' checks
+  }
+
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+}
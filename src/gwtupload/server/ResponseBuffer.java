@@ -0,0 +1,170 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A growable ISO-8859-1 byte buffer for rendering small xml or json responses without creating strings.
+ *
+ * Instances are not thread-safe; {@link #get()} returns one reused buffer per thread.
+ */
+public final class ResponseBuffer {
+
+  private static final int INITIAL_SIZE = 512;
+  private static final int MAX_KEPT_SIZE = 64 * 1024;
+  private static final ThreadLocal<ResponseBuffer> BUFFERS = new ThreadLocal<ResponseBuffer>() {
+    protected ResponseBuffer initialValue() {
+      return new ResponseBuffer();
+    }
+  };
+
+  private static final byte[] HEX = bytes("0123456789abcdef");
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  private int length = 0;
+
+  /** @return the empty buffer of the current thread */
+  public static ResponseBuffer get() {
+    final ResponseBuffer buffer = BUFFERS.get();
+    if (buffer.buf.length > MAX_KEPT_SIZE) {
+      buffer.buf = new byte[INITIAL_SIZE]; // don't keep a large batch response around
+    }
+    buffer.length = 0;
+    return buffer;
+  }
+
+  /** @return the ISO-8859-1 bytes of a constant fragment */
+  public static byte[] bytes(String fragment) {
+    try {
+      return fragment.getBytes("ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  public ResponseBuffer append(byte[] fragment) {
+    ensure(fragment.length);
+    System.arraycopy(fragment, 0, buf, length, fragment.length);
+    length += fragment.length;
+    return this;
+  }
+
+  /** Appends the decimal digits of a number. */
+  public ResponseBuffer append(long value) {
+    if (value == Long.MIN_VALUE) {
+      return appendRaw("-9223372036854775808");
+    }
+    ensure(20);
+    if (value < 0) {
+      buf[length++] = '-';
+      value = -value;
+    }
+    int start = length;
+    do {
+      buf[length++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    // digits were written backwards
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      final byte b = buf[i];
+      buf[i] = buf[j];
+      buf[j] = b;
+    }
+    return this;
+  }
+
+  /** Appends text that is already xml, characters outside ISO-8859-1 become '?'. */
+  public ResponseBuffer appendRaw(String text) {
+    final int n = text.length();
+    ensure(n);
+    for (int i = 0; i < n; i++) {
+      final char c = text.charAt(i);
+      buf[length++] = (byte) (c < 256 ? c : '?');
+    }
+    return this;
+  }
+
+  /** Appends text escaping the xml special characters, characters outside ISO-8859-1 become '?'. */
+  public ResponseBuffer appendEscaped(String text) {
+    final int n = text.length();
+    for (int i = 0; i < n; i++) {
+      final char c = text.charAt(i);
+      switch (c) {
+      case '<':
+        appendRaw("&lt;");
+        break;
+      case '>':
+        appendRaw("&gt;");
+        break;
+      case '&':
+        appendRaw("&amp;");
+        break;
+      default:
+        ensure(1);
+        buf[length++] = (byte) (c < 256 ? c : '?');
+      }
+    }
+    return this;
+  }
+
+  /** Appends a quoted json string, characters outside ASCII are written as unicode escapes. */
+  public ResponseBuffer appendJsonString(String text) {
+    final int n = text.length();
+    ensure(n + 2);
+    buf[length++] = '"';
+    for (int i = 0; i < n; i++) {
+      final char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        ensure(2);
+        buf[length++] = '\\';
+        buf[length++] = (byte) c;
+      } else if (c < 0x20 || c > 0x7e) {
+        ensure(6);
+        buf[length++] = '\\';
+        buf[length++] = 'u';
+        for (int shift = 12; shift >= 0; shift -= 4) {
+          buf[length++] = HEX[(c >> shift) & 0xf];
+        }
+      } else {
+        ensure(1);
+        buf[length++] = (byte) c;
+      }
+    }
+    ensure(1);
+    buf[length++] = '"';
+    return this;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /** Sends the buffer as the whole body of the response. */
+  public void writeTo(HttpServletResponse response, String contentType) throws IOException {
+    response.setContentType(contentType);
+    response.setContentLength(length);
+    final ServletOutputStream out = response.getOutputStream();
+    out.write(buf, 0, length);
+    out.flush();
+  }
+
+  public String toString() {
+    try {
+      return new String(buf, 0, length, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  private void ensure(int extra) {
+    if (length + extra > buf.length) {
+      final byte[] grown = new byte[Math.max(buf.length * 2, length + extra)];
+      System.arraycopy(buf, 0, grown, 0, length);
+      buf = grown;
+    }
+  }
+
+}
@@ -0,0 +1,238 @@
+package gwtupload.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Stores the files of a multi-file request in the background, so the repository writes file
+ * k while the parser is still reading file k+1.
+ *
+ * The parser thread spools each file, in memory or in a temporary file when it is bigger than
+ * <code>spoolThreshold</code> bytes, and hands it to a pool of threads shared by all requests.
+ * At most <code>depth</code> files of a request are spooled and not yet stored, so a slow
+ * repository makes the parser wait instead of filling the disk.
+ *
+ * Files are stored with a null request, since the request may be over by then. An aborted
+ * upload drops the files still queued and waits for the ones being stored.
+ */
+public class SavePipeline {
+
+  private final ExecutorService executor;
+  private final DiskFileItemFactory spool;
+  private final int depth;
+
+  /**
+   * @param threads the number of files stored at the same time, for all requests
+   * @param depth the number of files of one request that can be waiting to be stored
+   * @param spoolDirectory where files over the threshold are kept until stored
+   */
+  public SavePipeline(int threads, int depth, int spoolThreshold, File spoolDirectory) {
+    this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("gwtupload-save"));
+    this.spool = new DiskFileItemFactory(spoolThreshold, spoolDirectory);
+    this.depth = depth;
+  }
+
+  /** Starts the pipeline of one request; call {@link Upload#finish(boolean)} or {@link Upload#abort()} when it has been parsed. */
+  public Upload start(MultipleFileRepository repo, Integer fileToken) {
+    return new Upload(repo, fileToken);
+  }
+
+  /** Stops the threads; files waiting to be stored are dropped. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** The files of one request; {@link #add} is called by the request thread only. */
+  public class Upload {
+    private final MultipleFileRepository repo;
+    private final Integer fileToken;
+    private final Semaphore slots = new Semaphore(depth);
+    private final List<Save> saves = new ArrayList<Save>();
+    private final AtomicInteger storedItems = new AtomicInteger();
+    private volatile int receivingItem;
+    private volatile long currentBytes;
+    private volatile long totalBytes;
+    private volatile Exception failure;
+
+    Upload(MultipleFileRepository repo, Integer fileToken) {
+      this.repo = repo;
+      this.fileToken = fileToken;
+    }
+
+    /**
+     * Spools the next file of the request and queues it to be stored, waiting while the
+     * pipeline is full.
+     *
+     * @throws UploadErrorException or IOException when storing a previous file has failed
+     */
+    public void add(FileItemStream stream) throws IOException, UploadErrorException {
+      rethrow(failure);
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to store " + stream.getName());
+      }
+      final int item = saves.size();
+      receivingItem = item + 1;
+      final FileItem spooled = spool.createItem(stream.getFieldName(), stream.getContentType(), false, stream.getName());
+      boolean queued = false;
+      try {
+        Streams.copy(stream.openStream(), spooled.getOutputStream(), true);
+        final Save save = new Save(item, spooled);
+        save.future = executor.submit(save);
+        saves.add(save);
+        queued = true;
+      } finally {
+        if (!queued) {
+          spooled.delete();
+          slots.release();
+        }
+      }
+    }
+
+    /** @return the number of files received so far */
+    public int getItems() {
+      return saves.size();
+    }
+
+    /** Saves the progress of the request with the number of the file being received and of the files stored. */
+    public void saveProgress(long currentBytes, long totalBytes) {
+      this.currentBytes = currentBytes;
+      this.totalBytes = totalBytes;
+      repo.saveProgress(fileToken, currentBytes, totalBytes, receivingItem, storedItems.get());
+    }
+
+    /** Waits until every file is stored, then saves the final progress if asked to. */
+    public void finish(boolean saveProgress) throws IOException, UploadErrorException {
+      for (Save save : saves) {
+        try {
+          save.future.get();
+        } catch (InterruptedException e) {
+          abort();
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for the files to be stored");
+        } catch (ExecutionException e) {
+          abort();
+          if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+          }
+          rethrow((Exception) e.getCause());
+        }
+      }
+      if (saveProgress) {
+        repo.saveProgress(fileToken, currentBytes, totalBytes, receivingItem, storedItems.get());
+      }
+    }
+
+    /** Drops the files that haven't been stored yet and waits for the ones being stored. */
+    public void abort() {
+      // drop them all first, so none starts while waiting for another
+      for (Save save : saves) {
+        if (save.state.compareAndSet(Save.QUEUED, Save.DROPPED)) {
+          save.future.cancel(false);
+          save.release();
+        }
+      }
+      boolean interrupted = false;
+      for (Save save : saves) {
+        for (;;) {
+          try {
+            save.future.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true; // keep waiting, the file is still being stored
+          } catch (ExecutionException e) {
+            break;
+          } catch (CancellationException e) {
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void save(int item, FileItem spooled) throws Exception {
+      final InputStream in = spooled.getInputStream();
+      try {
+        repo.saveData(fileToken, item, spooled.getContentType(), in, null);
+        storedItems.incrementAndGet();
+      } catch (Exception e) {
+        failure = e;
+        throw e;
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+
+    /** Stores one spooled file, unless the upload is aborted before it starts. */
+    private class Save implements Callable<Object> {
+      static final int QUEUED = 0;
+      static final int RUNNING = 1;
+      static final int DROPPED = 2;
+      final AtomicInteger state = new AtomicInteger(QUEUED);
+      final int item;
+      final FileItem spooled;
+      Future<?> future;
+
+      Save(int item, FileItem spooled) {
+        this.item = item;
+        this.spooled = spooled;
+      }
+
+      public Object call() throws Exception {
+        if (failure != null && state.compareAndSet(QUEUED, DROPPED)) {
+          release(); // a previous file failed, the upload is lost anyway
+          return null;
+        } else if (!state.compareAndSet(QUEUED, RUNNING)) {
+          return null; // dropped by abort, which released it
+        }
+        try {
+          save(item, spooled);
+          return null;
+        } finally {
+          release();
+        }
+      }
+
+      void release() {
+        spooled.delete();
+        slots.release();
+      }
+    }
+
+    private void rethrow(Exception e) throws IOException, UploadErrorException {
+      if (e == null) {
+        return;
+      } else if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof UploadErrorException) {
+        throw (UploadErrorException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -0,0 +1,227 @@
+package gwtupload.server;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Parks <code>?status=</code> requests until the progress of their upload changes, using
+ * Servlet 3 asynchronous requests so a parked request doesn't hold a container thread.
+ *
+ * One background thread checks the parked requests every <code>interval</code> milliseconds,
+ * loading the progress of each token once per check, so it also sees uploads running in other
+ * nodes. A parked request is answered with the current status when its timeout expires.
+ *
+ * It also keeps <code>?events=</code> requests open, sending a Server-Sent Event each time the
+ * progress changes until the upload finishes, fails or is cancelled, or the timeout expires
+ * and the browser reconnects.
+ *
+ * The servlet must be mapped with <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>,
+ * otherwise requests are answered right away as before.
+ */
+public class StatusWatcher {
+
+  private static final Logger logger = Logger.getLogger(StatusWatcher.class);
+  private final UploadServlet servlet;
+  private final long timeout;
+  private final int percentStep;
+  private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param interval milliseconds between checks of the parked requests
+   * @param timeout maximum milliseconds a request stays parked
+   * @param percentStep minimum change in percent that answers a parked request
+   */
+  public StatusWatcher(UploadServlet servlet, long interval, long timeout, int percentStep) {
+    this.servlet = servlet;
+    this.timeout = timeout;
+    this.percentStep = percentStep;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gwtupload-status"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        check(null);
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** @return true if the progress is different enough from the bytes the client already knows */
+  public boolean hasChanged(FileProgress progress, long knownBytes) {
+    if (progress.getMessage() != null || progress.getPercent() >= 100) {
+      return true;
+    }
+    final long changed = Math.abs(progress.getCurrentBytes() - knownBytes);
+    if (progress.getTotalBytes() <= 0) {
+      return changed > 0;
+    }
+    return changed * 100 >= percentStep * progress.getTotalBytes();
+  }
+
+  /**
+   * Parks a status request until the progress changes or the timeout expires.
+   *
+   * @return false if the container doesn't support asynchronous requests, so the caller must answer
+   */
+  public boolean park(HttpServletRequest request, HttpServletResponse response, Integer fileToken, long knownBytes) {
+    if (!request.isAsyncSupported()) {
+      return false;
+    }
+    final AsyncContext context = request.startAsync(request, response);
+    context.setTimeout(timeout);
+    final Waiter waiter = new Waiter(context, fileToken, knownBytes, false);
+    context.addListener(waiter);
+    waiters.add(waiter);
+    return true;
+  }
+
+  /**
+   * Sends the current progress as an event, and keeps the request open to send more events.
+   *
+   * @return false if the container doesn't support asynchronous requests, so the caller must answer
+   */
+  public boolean stream(HttpServletRequest request, HttpServletResponse response, Integer fileToken, FileProgress progress) {
+    if (!request.isAsyncSupported()) {
+      return false;
+    }
+    final AsyncContext context = request.startAsync(request, response);
+    context.setTimeout(timeout);
+    final Waiter waiter = new Waiter(context, fileToken, -1, true);
+    context.addListener(waiter);
+    if (!waiter.update(progress, false)) {
+      waiters.add(waiter);
+    }
+    return true;
+  }
+
+  /** Checks the requests parked for a token right away, e.g. when its upload has finished in this node. */
+  public void wake(final Integer fileToken) {
+    if (waiters.isEmpty()) {
+      return;
+    }
+    try {
+      scheduler.execute(new Runnable() {
+        public void run() {
+          check(fileToken);
+        }
+      });
+    } catch (RuntimeException e) {
+      // rejected after shutdown, the parked requests have been answered already
+    }
+  }
+
+  /** Stops the background thread and answers the parked requests with their current status. */
+  public void shutdown() {
+    scheduler.shutdownNow();
+    for (Waiter waiter : waiters) {
+      waiter.update(servlet.repo.loadProgress(waiter.fileToken), true);
+    }
+    waiters.clear();
+  }
+
+  /** @param onlyToken only check the requests of this token, or null to check all of them */
+  private void check(Integer onlyToken) {
+    try {
+      final Set<Integer> fileTokens = new HashSet<Integer>();
+      for (Iterator<Waiter> i = waiters.iterator(); i.hasNext();) {
+        final Waiter waiter = i.next();
+        if (waiter.done.get()) {
+          i.remove();
+        } else if (onlyToken == null || onlyToken.equals(waiter.fileToken)) {
+          fileTokens.add(waiter.fileToken);
+        }
+      }
+      if (fileTokens.isEmpty()) {
+        return;
+      }
+      final Map<Integer, FileProgress> loaded = servlet.loadProgress(fileTokens);
+      for (Iterator<Waiter> i = waiters.iterator(); i.hasNext();) {
+        final Waiter waiter = i.next();
+        final FileProgress progress = loaded.get(waiter.fileToken);
+        if (progress != null && hasChanged(progress, waiter.knownBytes) && waiter.update(progress, false)) {
+          i.remove();
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("Error checking parked status requests: " + e.getMessage(), e);
+    }
+  }
+
+  /** A parked status request, or an open event stream. */
+  private class Waiter implements AsyncListener {
+    private final AsyncContext context;
+    private final Integer fileToken;
+    private final boolean stream;
+    private volatile long knownBytes;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    Waiter(AsyncContext context, Integer fileToken, long knownBytes, boolean stream) {
+      this.context = context;
+      this.fileToken = fileToken;
+      this.knownBytes = knownBytes;
+      this.stream = stream;
+    }
+
+    /**
+     * Sends the progress to the client.
+     *
+     * @param last true to close an event stream after this event
+     * @return true if the request has been completed
+     */
+    synchronized boolean update(FileProgress progress, boolean last) {
+      if (done.get()) {
+        return true;
+      }
+      final boolean finished = !stream || last || progress.getMessage() != null || progress.getPercent() >= 100;
+      try {
+        final HttpServletRequest request = (HttpServletRequest) context.getRequest();
+        final HttpServletResponse response = (HttpServletResponse) context.getResponse();
+        if (stream) {
+          servlet.renderStatusEvent(request, response, servlet.getUploadStatus(fileToken, progress));
+          knownBytes = progress.getCurrentBytes();
+        } else {
+          servlet.renderStatusResponse(request, response, fileToken, progress);
+        }
+      } catch (IOException e) {
+        logger.debug("(" + fileToken + ") client went away while waiting for status: " + e.getMessage());
+        done.set(true);
+        context.complete();
+        return true;
+      }
+      if (finished && done.compareAndSet(false, true)) {
+        context.complete();
+      }
+      return finished;
+    }
+
+    public void onTimeout(AsyncEvent event) {
+      update(servlet.repo.loadProgress(fileToken), true);
+    }
+
+    public void onComplete(AsyncEvent event) {
+      done.set(true);
+    }
+
+    public void onError(AsyncEvent event) {
+      done.set(true);
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+    }
+  }
+
+}
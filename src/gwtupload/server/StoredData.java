@@ -0,0 +1,53 @@
+package gwtupload.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An uploaded file as stored in a {@link RangedFileRepository}: its size, when it was stored and
+ * a validator that changes when its content does, so downloads can be conditional and partial.
+ *
+ * Close it when done; implementations may hold the file open.
+ */
+public abstract class StoredData implements Closeable {
+
+  private final String contentType;
+  private final long size;
+  private final long lastModified;
+  private final String etag;
+
+  /**
+   * @param lastModified milliseconds since the epoch
+   * @param etag an entity tag, with its quotes
+   */
+  public StoredData(String contentType, long size, long lastModified, String etag) {
+    this.contentType = contentType != null && contentType.length() > 0 ? contentType : "application/octet-stream";
+    this.size = size;
+    this.lastModified = lastModified;
+    this.etag = etag;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public String getETag() {
+    return etag;
+  }
+
+  /** Writes <code>length</code> bytes starting at <code>offset</code>. */
+  public abstract void writeTo(long offset, long length, OutputStream out) throws IOException;
+
+  public void close() throws IOException {
+  }
+
+}
@@ -0,0 +1,171 @@
+package gwtupload.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stops uploads received slower than <code>minBytesPerSecond</code> over a window of
+ * <code>windowMillis</code>, so a client trickling bytes doesn't keep a thread and its buffers.
+ *
+ * The bytes are counted as the request stream is read, since progress callbacks may be far
+ * apart. A background thread looks at every upload twice per window; a stalled one gets its
+ * error saved at once, so status requests see it, and its stream throws
+ * {@link UploadStalledException} the next time it is read. A read blocked on a silent client
+ * returns when the container's connection timeout expires.
+ *
+ * Watch the request as received, before a {@link BandwidthShaper} slows it down, and give the
+ * {@link Upload} to the shaper as its {@link BandwidthShaper.PauseListener}: the time the shaper
+ * keeps the upload waiting is left out of the window, so throttled uploads aren't stopped.
+ */
+public class ThroughputMonitor {
+
+  private static final Logger logger = Logger.getLogger(ThroughputMonitor.class);
+  private final FileRepository repo;
+  private final long minBytesPerSecond;
+  private final long windowMillis;
+  private final ConcurrentHashMap<Upload, Boolean> uploads = new ConcurrentHashMap<Upload, Boolean>();
+  private final ScheduledExecutorService scheduler;
+
+  public ThroughputMonitor(FileRepository repo, long minBytesPerSecond, long windowMillis) {
+    this.repo = repo;
+    this.minBytesPerSecond = minBytesPerSecond;
+    this.windowMillis = windowMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gwtupload-reaper"));
+    final long interval = Math.max(1000, windowMillis / 2);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          check();
+        } catch (RuntimeException e) {
+          logger.error("Error checking the upload throughput: " + e.getMessage(), e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Starts watching an upload; call {@link Upload#finish()} when the request is done. */
+  public Upload watch(Integer fileToken) {
+    final Upload upload = new Upload(fileToken);
+    uploads.put(upload, Boolean.TRUE);
+    return upload;
+  }
+
+  /** Stops the background thread. */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /** Marks the uploads that received too little in their last window. */
+  void check() {
+    final long now = System.currentTimeMillis();
+    for (Upload upload : uploads.keySet()) {
+      final long elapsed = now - upload.windowStart - (upload.paused - upload.windowPaused) / 1000000;
+      if (elapsed < windowMillis) {
+        continue;
+      }
+      final long received = upload.received - upload.windowBytes;
+      if (received * 1000 / elapsed < minBytesPerSecond) {
+        stalled(upload, "Upload stalled: " + received + " bytes received in the last " + elapsed / 1000 + " seconds");
+      } else {
+        upload.windowStart = now;
+        upload.windowBytes = upload.received;
+        upload.windowPaused = upload.paused;
+      }
+    }
+  }
+
+  /** Called once for a stalled upload; saves the error so the client sees it. Override to do more. */
+  protected void stalled(Integer fileToken, String message) {
+    if (fileToken != null) {
+      repo.saveError(fileToken, message);
+    }
+  }
+
+  private void stalled(Upload upload, String message) {
+    uploads.remove(upload);
+    if (logger.isDebugEnabled()) {
+      logger.debug("(" + upload.fileToken + ") " + message);
+    }
+    upload.stalled = message;
+    stalled(upload.fileToken, message);
+  }
+
+  /** An upload being watched; the counters are written by the request thread only. */
+  public class Upload implements BandwidthShaper.PauseListener {
+    private final Integer fileToken;
+    private volatile long received;
+    private volatile long paused;
+    private volatile long windowStart = System.currentTimeMillis();
+    private volatile long windowBytes;
+    private volatile long windowPaused;
+    private volatile String stalled;
+
+    Upload(Integer fileToken) {
+      this.fileToken = fileToken;
+    }
+
+    /** @return the request, with its body counted and stopped if it stalls */
+    public HttpServletRequest watch(HttpServletRequest request) {
+      return new FilteredRequest(request) {
+        protected InputStream filter(InputStream body) {
+          return new CountingInputStream(body);
+        }
+      };
+    }
+
+    /** @return true if the upload was too slow and has been stopped */
+    public boolean isStalled() {
+      return stalled != null;
+    }
+
+    public void finish() {
+      uploads.remove(this);
+    }
+
+    /** Leaves the time a shaper keeps this upload waiting out of its window. */
+    public void paused(long nanos) {
+      paused += nanos;
+    }
+
+    private void count(long bytes) throws UploadStalledException {
+      if (stalled != null) {
+        throw new UploadStalledException(stalled);
+      }
+      received += bytes;
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+      CountingInputStream(InputStream in) {
+        super(in);
+      }
+
+      public int read() throws IOException {
+        final int b = super.read();
+        count(b >= 0 ? 1 : 0);
+        return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        count(Math.max(0, n));
+        return n;
+      }
+
+      public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package gwtupload.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits a rate of bytes per second, letting <code>burstBytes</code> through at once after a pause.
+ *
+ * Instead of a count of tokens it keeps the time when all the bytes taken so far will have been
+ * paid for, moved forward with a compare-and-set, so threads sharing a bucket never lock. Bytes
+ * can be taken ahead, and the caller waits for the time returned by {@link #reserve(long)}.
+ */
+public class TokenBucket {
+
+  private static final long NANOS = 1000000000L;
+  private final long bytesPerSecond;
+  private final long burstNanos;
+  private final AtomicLong paidUntil;
+
+  public TokenBucket(long bytesPerSecond, long burstBytes) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstNanos = nanosFor(burstBytes);
+    this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos); // starts full
+  }
+
+  /**
+   * Takes <code>bytes</code> from the bucket.
+   *
+   * @return the nanoseconds to wait before using them, 0 if they can be used now
+   */
+  public long reserve(long bytes) {
+    final long cost = nanosFor(bytes);
+    for (;;) {
+      final long now = System.nanoTime();
+      final long paid = paidUntil.get();
+      // an idle bucket only saves up to the burst
+      final long next = Math.max(paid, now - burstNanos) + cost;
+      if (paidUntil.compareAndSet(paid, next)) {
+        return Math.max(0, next - now);
+      }
+    }
+  }
+
+  /** @return true if the bucket has been full for <code>nanos</code>, so dropping it changes nothing */
+  public boolean isIdle(long nanos) {
+    return paidUntil.get() < System.nanoTime() - burstNanos - nanos;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  private long nanosFor(long bytes) {
+    return bytes >= Long.MAX_VALUE / NANOS ? Long.MAX_VALUE / 4 : bytes * NANOS / bytesPerSecond;
+  }
+
+}
@@ -16,52 +16,84 @@
  */
 package gwtupload.server;
 
-import java.util.Date;
-
 import org.apache.commons.fileupload.ProgressListener;
 
 public class UploadListener implements ProgressListener {
 
-  private static final int DEFAULT_SAVE_INTERVAL = 1000;
+  private static final ProgressSavePolicy DEFAULT_SAVE_POLICY = new AdaptiveSavePolicy();
   private final FileRepository repo;
   private final Integer fileToken;
-  private Date lastSaved = new Date();
+  private final ProgressSavePolicy savePolicy;
+  private final CancellationRegistry.Handle cancellation;
+  private final SavePipeline.Upload pipeline;
+  private long lastSaved = System.nanoTime();
+  private long lastSavedBytes = 0;
   private long lastCurrentBytes = 0;
-  private int uploadDelay;
 
+  public UploadListener(FileRepository repo, Integer fileToken) {
+    this(repo, fileToken, DEFAULT_SAVE_POLICY);
+  }
+
+  /** @deprecated the delay is ignored, slow uploads down with the maxUploadRate parameter of the servlet */
+  @Deprecated
   public UploadListener(FileRepository repo, Integer fileToken, int uploadDelay) {
+    this(repo, fileToken);
+  }
+
+  public UploadListener(FileRepository repo, Integer fileToken, ProgressSavePolicy savePolicy) {
+    this(repo, fileToken, savePolicy, null);
+  }
+
+  /**
+   * @param savePolicy when to save the progress, or null to never save it and only watch for cancels
+   * @param cancellation signalled when the upload is cancelled, or null to look for a message in the repository on each save
+   */
+  public UploadListener(FileRepository repo, Integer fileToken, ProgressSavePolicy savePolicy, CancellationRegistry.Handle cancellation) {
+    this(repo, fileToken, savePolicy, cancellation, null);
+  }
+
+  /** @param pipeline the files of a multi-file request, which saves the progress with the number of files stored */
+  public UploadListener(FileRepository repo, Integer fileToken, ProgressSavePolicy savePolicy, CancellationRegistry.Handle cancellation,
+      SavePipeline.Upload pipeline) {
     this.repo = repo;
     this.fileToken = fileToken;
-    this.uploadDelay = uploadDelay;
+    this.savePolicy = savePolicy;
+    this.cancellation = cancellation;
+    this.pipeline = pipeline;
   }
 
-  /** This method is called each time the server receives a block of bytes--could be very often. */
+  /** This method is called each time the server receives a block of bytes--could be very often, so it must not allocate. */
   public void update(long currentBytes, long totalBytes, int item) {
     // To avoid cache overloading, this object is saved when the upload starts, 
-    // when it has finished, or when the interval from the last save is significant. 
-    boolean save = lastCurrentBytes == 0 && currentBytes > 0 || currentBytes >= totalBytes || (new Date()).getTime() - lastSaved.getTime() > DEFAULT_SAVE_INTERVAL;
+    // when it has finished, or when the save policy says the change is significant. 
+    // Stop as soon as another request has cancelled the upload, so the
+    // commons-fileupload's parser stops and the connection is closed.
+    if (cancellation != null && cancellation.isCancelled()) {
+      throw new UploadCancelledException();
+    } else if (savePolicy == null) {
+      return; // the client follows the progress by itself
+    }
+
+    final long now = System.nanoTime();
+    boolean save = lastCurrentBytes == 0 && currentBytes > 0 || currentBytes >= totalBytes && totalBytes > 0
+        || savePolicy.shouldSave(now - lastSaved, lastSavedBytes, currentBytes, totalBytes);
     lastCurrentBytes = currentBytes;
     if (!save)
       return;
-    lastSaved = new Date();
+    lastSaved = now;
+    lastSavedBytes = currentBytes;
 
-    // If other request has set an exception, e.g. message=cancelled, stop so the
-    // commons-fileupload's parser stops and the connection is closed.
-    final FileProgress p = repo.loadProgress(fileToken);
-    if (p.getMessage() != null) {
+    // Without a registry, look for a message set by other request, e.g. message=cancelled.
+    if (cancellation == null && repo.loadProgress(fileToken).getMessage() != null) {
       throw new UploadCancelledException();
     }
 
-    repo.saveProgress(fileToken, currentBytes, totalBytes);
-
-    // Just a way to slow down the upload process and see the progress bar in fast networks.
-    if (uploadDelay > 0 && currentBytes < totalBytes) {
-      try {
-        Thread.sleep(uploadDelay);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-      }
+    if (pipeline != null) {
+      pipeline.saveProgress(currentBytes, totalBytes);
+    } else {
+      repo.saveProgress(fileToken, currentBytes, totalBytes);
     }
+    savePolicy.saved(System.nanoTime() - now);
   }
 
 }
@@ -16,9 +16,17 @@
  */
 package gwtupload.server;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -29,6 +37,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.ProgressListener;
 import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
 import org.apache.commons.fileupload.FileUploadBase.IOFileUploadException;
 import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
@@ -41,35 +50,207 @@ public abstract class UploadServlet extends HttpServlet {
 
   private static final long serialVersionUID = 1L;
   private static final Logger logger = Logger.getLogger(UploadServlet.class);
-  private static final String XML_TPL = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<response>%%MESSAGE%%</response>\n";
+  private static final String CONTENT_TYPE = "text/html";
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final byte[] XML_HEAD = ResponseBuffer.bytes("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<response>");
+  private static final byte[] XML_TAIL = ResponseBuffer.bytes("</response>\n");
+  private static final byte[] STATUS_CANCELLED = ResponseBuffer.bytes("<cancelled>true</cancelled><finished>cancelled</finished>");
+  private static final byte[] STATUS_ERROR_OPEN = ResponseBuffer.bytes("<error>");
+  private static final byte[] STATUS_ERROR_CLOSE = ResponseBuffer.bytes("</error><finished>error</finished>");
+  private static final byte[] STATUS_PERCENT_OPEN = ResponseBuffer.bytes("<percent>");
+  private static final byte[] STATUS_PERCENT_CLOSE = ResponseBuffer.bytes("</percent><currentBytes>");
+  private static final byte[] STATUS_CURRENT_CLOSE = ResponseBuffer.bytes("</currentBytes><totalBytes>");
+  private static final byte[] STATUS_TOTAL_CLOSE = ResponseBuffer.bytes("</totalBytes>");
+  private static final byte[] STATUS_FINISHED = ResponseBuffer.bytes("<finished>OK</finished>");
+  private static final byte[] STATUS_ITEM_OPEN = ResponseBuffer.bytes("<item>");
+  private static final byte[] STATUS_ITEM_CLOSE = ResponseBuffer.bytes("</item><storedItems>");
+  private static final byte[] STATUS_STORED_CLOSE = ResponseBuffer.bytes("</storedItems>");
+  private static final byte[] BATCH_STATUS_OPEN = ResponseBuffer.bytes("<status token=\"");
+  private static final byte[] BATCH_STATUS_TOKEN_CLOSE = ResponseBuffer.bytes("\">");
+  private static final byte[] BATCH_STATUS_CLOSE = ResponseBuffer.bytes("</status>");
+  private static final byte[] JSON_CANCELLED = ResponseBuffer.bytes("{\"cancelled\":true,\"finished\":\"cancelled\"}");
+  private static final byte[] JSON_ERROR_OPEN = ResponseBuffer.bytes("{\"error\":");
+  private static final byte[] JSON_ERROR_CLOSE = ResponseBuffer.bytes(",\"finished\":\"error\"}");
+  private static final byte[] JSON_PERCENT_OPEN = ResponseBuffer.bytes("{\"percent\":");
+  private static final byte[] JSON_CURRENT = ResponseBuffer.bytes(",\"currentBytes\":");
+  private static final byte[] JSON_TOTAL = ResponseBuffer.bytes(",\"totalBytes\":");
+  private static final byte[] JSON_FINISHED = ResponseBuffer.bytes(",\"finished\":\"OK\"");
+  private static final byte[] JSON_ITEM = ResponseBuffer.bytes(",\"item\":");
+  private static final byte[] JSON_STORED = ResponseBuffer.bytes(",\"storedItems\":");
+  private static final byte[] JSON_CLOSE = ResponseBuffer.bytes("}");
+  private static final byte[] JSON_BATCH_OPEN = ResponseBuffer.bytes("{\"statuses\":{");
+  private static final byte[] JSON_BATCH_CLOSE = ResponseBuffer.bytes("}}");
+  private static final byte[] JSON_BATCH_TOKEN_OPEN = ResponseBuffer.bytes("\"");
+  private static final byte[] JSON_BATCH_TOKEN_CLOSE = ResponseBuffer.bytes("\":");
+  private static final byte[] JSON_COMMA = ResponseBuffer.bytes(",");
+  private static final int EVENTS_RETRY = 3000; // milliseconds
+  private static final int MAX_BATCH_TOKENS = 100;
   protected long maxSize = 5000; // 5000 bytes, 5kB
+  /** @deprecated ignored, slow uploads down with the maxUploadRate parameter */
+  @Deprecated
   protected int uploadDelay = 0;
+  protected long maxChunkSize = 0; // no limit
+  protected int parserBufferSize = 0; // commons-fileupload parser
+  protected String cacheControl = "max-age=0, must-revalidate"; // cached, but checked with the validators every time
   protected FileRepository repo;
+  protected ProgressSavePolicy savePolicy;
+  protected CancellationRegistry cancellations;
+  protected StatusWatcher statusWatcher;
+  protected SavePipeline savePipeline;
+  protected AdmissionController admission;
+  protected int retryAfter = 2; // seconds
+  protected BandwidthShaper shaper;
+  protected ThroughputMonitor throughputMonitor;
+  protected DeletionQueue deletions;
+  protected boolean instantUploads = false; // a digest is no proof of having the content
+  private boolean legacyStatus = false; // a subclass overrides getUploadStatus(Integer)
+  private volatile boolean getRemovalWarned = false;
 
   /** Read configurable parameters during the servlet initialization. */
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
 
     repo = newFileRepository();
+    legacyStatus = overridesUploadStatus();
+    savePolicy = newProgressSavePolicy();
+    cancellations = new CancellationRegistry(newCancellationNotifier());
 
     String size = config.getServletContext().getInitParameter("maxSize");
     if (size != null) {
       maxSize = Long.parseLong(size);
     }
 
-    String delay = config.getServletContext().getInitParameter("uploadDelay");
-    if (delay != null) {
-      uploadDelay = Integer.valueOf(delay);
+    String chunk = config.getServletContext().getInitParameter("maxChunkSize");
+    if (chunk != null) {
+      maxChunkSize = Long.parseLong(chunk);
     }
 
-    logger.info("init: maxSize=" + maxSize + ", uploadDelay=" + uploadDelay + ")");
+    // Parse uploads with MultipartStreamParser instead of commons-fileupload
+    if ("true".equals(config.getServletContext().getInitParameter("fastParser"))) {
+      String buffer = config.getServletContext().getInitParameter("parserBufferSize");
+      parserBufferSize = buffer != null ? Integer.parseInt(buffer) : MultipartStreamParser.DEFAULT_BUFFER_SIZE;
+    }
+
+    String cache = config.getServletContext().getInitParameter("showCacheControl");
+    if (cache != null) {
+      cacheControl = cache.length() > 0 ? cache : null;
+    }
+
+    // Limit how fast uploads are read, in bytes per second, to protect the repository
+    String uploadRate = config.getServletContext().getInitParameter("maxUploadRate");
+    String clientRate = config.getServletContext().getInitParameter("maxClientRate");
+    String totalRate = config.getServletContext().getInitParameter("maxTotalRate");
+    if (uploadRate != null || clientRate != null || totalRate != null) {
+      String burst = config.getServletContext().getInitParameter("rateBurst");
+      shaper = new BandwidthShaper(uploadRate != null ? Long.parseLong(uploadRate) : 0, clientRate != null ? Long.parseLong(clientRate) : 0,
+          totalRate != null ? Long.parseLong(totalRate) : 0, burst != null ? Long.parseLong(burst) : 256 * 1024);
+    }
+    // Stop uploads received slower than this, in bytes per second over the window
+    String minRate = config.getServletContext().getInitParameter("minUploadRate");
+    if (minRate != null && Long.parseLong(minRate) > 0) {
+      String window = config.getServletContext().getInitParameter("minUploadRateWindow");
+      throughputMonitor = new ThroughputMonitor(repo, Long.parseLong(minRate), window != null ? Long.parseLong(window) : 30000) {
+        protected void stalled(Integer fileToken, String message) {
+          super.stalled(fileToken, message);
+          if (fileToken != null) {
+            wakeStatusRequests(fileToken);
+          }
+        }
+      };
+    }
+    if (config.getServletContext().getInitParameter("uploadDelay") != null) {
+      logger.warn("uploadDelay is not supported anymore, use maxUploadRate to slow uploads down");
+    }
+
+    // Servlet 3 only: park status requests until the progress changes
+    String wait = config.getServletContext().getInitParameter("statusWaitTimeout");
+    if (wait != null && Long.parseLong(wait) > 0) {
+      String step = config.getServletContext().getInitParameter("statusWaitPercent");
+      statusWatcher = new StatusWatcher(this, 250, Long.parseLong(wait), step != null ? Integer.parseInt(step) : 1);
+    }
+
+    // Accept several files per request, stored in the background while the rest is parsed
+    String multiple = config.getServletContext().getInitParameter("multipleFiles");
+    if ("true".equals(multiple)) {
+      if (!supports(MultipleFileRepository.class)) {
+        throw new ServletException("multipleFiles needs a MultipleFileRepository, not " + repo.getClass().getName());
+      }
+      String threads = config.getServletContext().getInitParameter("saveThreads");
+      String depth = config.getServletContext().getInitParameter("saveDepth");
+      savePipeline = new SavePipeline(threads != null ? Integer.parseInt(threads) : 4, depth != null ? Integer.parseInt(depth) : 2, //
+          256 * 1024, (File) config.getServletContext().getAttribute("javax.servlet.context.tempdir"));
+    }
+
+    // Refuse uploads over these limits with 503 instead of letting them pile up
+    String uploads = config.getServletContext().getInitParameter("maxConcurrentUploads");
+    String bytes = config.getServletContext().getInitParameter("maxInFlightBytes");
+    String perClient = config.getServletContext().getInitParameter("maxUploadsPerClient");
+    if (uploads != null || bytes != null || perClient != null) {
+      admission = new AdmissionController(uploads != null ? Integer.parseInt(uploads) : 0, bytes != null ? Long.parseLong(bytes) : 0,
+          perClient != null ? Integer.parseInt(perClient) : 0);
+      String retry = config.getServletContext().getInitParameter("retryAfter");
+      if (retry != null) {
+        retryAfter = Integer.parseInt(retry);
+      }
+    }
+
+    // Link uploads to stored content with the same digest and size. Anyone who knows the digest of
+    // a stored file can then read it through a token of their own, so only enable it when that's fine.
+    instantUploads = "true".equals(config.getServletContext().getInitParameter("instantUploads"));
+    if (instantUploads && !(repo instanceof ContentAddressedFileRepository)) {
+      logger.warn("instantUploads needs a ContentAddressedFileRepository, not " + repo.getClass().getName());
+    }
+
+    // Remove uploads in the background, and the ones not touched for uploadTtl milliseconds
+    String ttl = config.getServletContext().getInitParameter("uploadTtl");
+    if (supports(RemovableFileRepository.class)) {
+      String batch = config.getServletContext().getInitParameter("deleteBatchSize");
+      long ttlMillis = ttl != null ? Long.parseLong(ttl) : 0;
+      deletions = new DeletionQueue((RemovableFileRepository) repo, batch != null ? Integer.parseInt(batch) : 100, ttlMillis, Math.max(1000, ttlMillis / 10));
+    } else if (ttl != null) {
+      logger.warn("uploadTtl needs a RemovableFileRepository, not " + repo.getClass().getName());
+    }
+
+    logger.info("init: maxSize=" + maxSize + ", maxUploadRate=" + uploadRate + ", maxClientRate=" + clientRate + ", maxTotalRate=" + totalRate
+        + ", statusWaitTimeout=" + wait + ", multipleFiles=" + multiple + ", parserBufferSize=" + parserBufferSize + ")");
+  }
+
+  public void destroy() {
+    cancellations.shutdown();
+    if (statusWatcher != null) {
+      statusWatcher.shutdown();
+    }
+    if (savePipeline != null) {
+      savePipeline.shutdown();
+    }
+    if (throughputMonitor != null) {
+      throughputMonitor.shutdown();
+    }
+    if (deletions != null) {
+      deletions.shutdown();
+    }
+    if (repo instanceof Closeable) {
+      try {
+        ((Closeable) repo).close();
+      } catch (IOException e) {
+        logger.error("Error closing the file repository: " + e.getMessage(), e);
+      }
+    }
+    super.destroy();
   }
 
   /** The get method is used to monitor the uploading process or to get the content of the uploaded files. */
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     if (request.getParameter("show") != null) {
       final Integer fileToken = getToken(request, "show");
-      if (fileToken != null) {
+      final long item = getLong(request, "item");
+      if (fileToken == null) {
+        // nothing to show
+      } else if (sendStoredData(request, response, fileToken, item > 0 && repo instanceof MultipleFileRepository ? (int) item : 0)) {
+        // sent with validators and ranges
+      } else if (item > 0 && repo instanceof MultipleFileRepository) {
+        ((MultipleFileRepository) repo).sendData(fileToken, (int) item, response);
+      } else {
         repo.sendData(fileToken, response);
       }
 
@@ -77,26 +258,105 @@ public abstract class UploadServlet extends HttpServlet {
       final Integer fileToken = getToken(request, "cancel");
       if (fileToken != null) {
         repo.saveError(fileToken, "cancelled");
+        cancellations.cancelEverywhere(fileToken);
+        wakeStatusRequests(fileToken);
         renderXmlResponse(request, response, wrapXml("cancelled", "true"));
       } else {
         renderXmlResponse(request, response, errorXml("Missing token"));
       }
 
-    } else if (request.getParameter("remove") != null) {
-      // noop for now
-      renderXmlResponse(request, response, finishedXml("OK"));
+    } else if (request.getParameter("remove") != null || request.getParameter("clean") != null) {
+      // still answered for older clients, but links, prefetches and crawlers can delete uploads this way
+      if (!getRemovalWarned) {
+        getRemovalWarned = true;
+        logger.warn("Removing uploads with GET is deprecated, send remove and clean with POST");
+      }
+      removeUploads(request, response);
 
-    } else if (request.getParameter("clean") != null) {
-      // noop for now
-      renderXmlResponse(request, response, finishedXml("OK"));
+    } else if (request.getParameter("events") != null) {
+      final Integer fileToken = getToken(request, "events");
+      if (fileToken != null) {
+        final FileProgress progress = repo.loadProgress(fileToken);
+        if (statusWatcher == null || !statusWatcher.stream(request, response, fileToken, progress)) {
+          // one event per reconnection would be polling, so the browser is told to ask for the status instead
+          response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Progress events need statusWaitTimeout and a Servlet 3 container");
+        }
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing token");
+      }
+
+    } else if (request.getParameter("digest") != null) {
+      final Integer fileToken = getToken(request, "fileToken");
+      final long size = getLong(request, "size");
+      if (fileToken == null) {
+        renderXmlResponse(request, response, errorXml("Missing token"));
+      } else if (size <= maxSize && linkContent(fileToken, request.getParameter("digest"), request.getParameter("algorithm"), size)) {
+        renderXmlResponse(request, response, finishedXml("OK"));
+      } else {
+        // not stored yet, the client has to send it
+        renderXmlResponse(request, response, wrapXml("digest", "unknown"));
+      }
+
+    } else if (request.getParameter("resume") != null) {
+      final Integer fileToken = getToken(request, "resume");
+      if (fileToken != null) {
+        final ChunkRanges ranges = supports(ChunkedFileRepository.class) ? ((ChunkedFileRepository) repo).loadChunks(fileToken) : null;
+        renderXmlResponse(request, response, ranges != null ? chunksXml(ranges) : wrapXml("offset", "0"));
+      } else {
+        renderXmlResponse(request, response, errorXml("Missing token"));
+      }
+
+    } else if (request.getParameter("statuses") != null) {
+      final Collection<Integer> fileTokens = getTokens(request, "statuses");
+      if (fileTokens == null) {
+        renderErrorResponse(request, response, "Too many tokens, at most " + MAX_BATCH_TOKENS);
+      } else if (!fileTokens.isEmpty()) {
+        final Map<Integer, FileProgress> progress = loadProgress(fileTokens);
+        if (isJsonRequested(request)) {
+          final ResponseBuffer out = ResponseBuffer.get().append(JSON_BATCH_OPEN);
+          boolean first = true;
+          for (Integer fileToken : fileTokens) {
+            if (!first) {
+              out.append(JSON_COMMA);
+            }
+            first = false;
+            out.append(JSON_BATCH_TOKEN_OPEN).append(fileToken.longValue()).append(JSON_BATCH_TOKEN_CLOSE);
+            appendUploadStatusJson(out, fileToken, progress.get(fileToken));
+          }
+          out.append(JSON_BATCH_CLOSE).writeTo(response, JSON_CONTENT_TYPE);
+          return;
+        } else if (legacyStatus) {
+          // the overridden method uses the shared buffer, so the statuses are joined first
+          final StringBuilder statuses = new StringBuilder();
+          for (Integer fileToken : fileTokens) {
+            statuses.append("<status token=\"").append(fileToken).append("\">").append(getUploadStatus(fileToken, progress.get(fileToken))).append("</status>");
+          }
+          renderXmlResponse(request, response, statuses.toString());
+          return;
+        }
+        final ResponseBuffer out = ResponseBuffer.get().append(XML_HEAD);
+        for (Integer fileToken : fileTokens) {
+          out.append(BATCH_STATUS_OPEN).append(fileToken.longValue()).append(BATCH_STATUS_TOKEN_CLOSE);
+          appendUploadStatus(out, fileToken, progress.get(fileToken));
+          out.append(BATCH_STATUS_CLOSE);
+        }
+        out.append(XML_TAIL).writeTo(response, CONTENT_TYPE);
+      } else {
+        renderErrorResponse(request, response, "Missing token");
+      }
 
     } else if (request.getParameter("status") != null) {
       final Integer fileToken = getToken(request, "status");
       if (fileToken != null) {
-        final String statusXml = getUploadStatus(fileToken);
-        renderXmlResponse(request, response, statusXml);
+        final FileProgress progress = repo.loadProgress(fileToken);
+        final long knownBytes = getLong(request, "wait");
+        if (statusWatcher != null && knownBytes >= 0 && !statusWatcher.hasChanged(progress, knownBytes)
+            && statusWatcher.park(request, response, fileToken, knownBytes)) {
+          return;
+        }
+        renderStatusResponse(request, response, fileToken, progress);
       } else {
-        renderXmlResponse(request, response, errorXml("Missing token"));
+        renderErrorResponse(request, response, "Missing token");
       }
     }
   }
@@ -109,16 +369,46 @@ public abstract class UploadServlet extends HttpServlet {
    * The content of this xml document has a tag error in the case of error in
    * the upload process or the string OK in the case of success.
    * 
+   * A post without a file and with the remove or clean parameters removes uploads instead.
    */
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader("Content-Range") == null && (request.getParameter("remove") != null || request.getParameter("clean") != null)) {
+      removeUploads(request, response);
+      return;
+    }
+    final AdmissionController.Ticket ticket = admission != null ? admission.tryAcquire(getClientKey(request), getContentLength(request)) : null;
+    if (admission != null && ticket == null) {
+      refuseUpload(request, response);
+      return;
+    }
+    // chunk errors aren't saved as the upload error, the client sends the chunk again
+    final ThroughputMonitor.Upload watched = throughputMonitor == null ? null
+        : throughputMonitor.watch(request.getHeader("Content-Range") == null ? getToken(request, "fileToken") : null);
+    // the received bytes are counted before shaping, and the shaper's pauses aren't held against the client
+    if (watched != null) {
+      request = watched.watch(request);
+    }
+    if (shaper != null) {
+      request = shaper.shape(request, getClientKey(request), watched);
+    }
     try {
-      parsePostRequest(request, response);
-      renderXmlResponse(request, response, finishedXml("OK"));
+      if (request.getHeader("Content-Range") != null) {
+        renderXmlResponse(request, response, chunksXml(parseChunkRequest(request, response)));
+      } else {
+        parsePostRequest(request, response);
+        renderXmlResponse(request, response, finishedXml("OK"));
+      }
     } catch (UploadErrorException e) { // our error, "expected" error 
       renderXmlResponse(request, response, errorXml(e.getMessage()));
     } catch (UploadCancelledException e) { // our error, expected cancelled
       renderXmlResponse(request, response, wrapXml("cancelled", "true"));
+    } catch (UploadStalledException e) { // our error, the client is too slow
+      renderXmlResponse(request, response, errorXml(e.getMessage()));
     } catch (IOFileUploadException io) { // commons errors, unwrap the IOException
+      if (io.getCause() instanceof UploadStalledException) {
+        renderXmlResponse(request, response, errorXml(io.getCause().getMessage()));
+        return;
+      }
       throw (IOException) io.getCause();
     } catch (FileSizeLimitExceededException e) { // commons error, bad size
       renderXmlResponse(request, response, errorXml(e.getMessage()));
@@ -130,26 +420,61 @@ public abstract class UploadServlet extends HttpServlet {
     } catch (RuntimeException e) { // not expected
       logger.error("Upload exception: " + e.getMessage(), e);
       renderXmlResponse(request, response, errorXml(e.getMessage()));
+    } finally {
+      if (watched != null) {
+        watched.finish();
+      }
+      if (ticket != null) {
+        ticket.release();
+      }
     }
   }
 
-  protected void parsePostRequest(HttpServletRequest request, HttpServletResponse response) throws UploadErrorException, FileUploadException, IOException {
-    final int delay;
-    if (request.getParameter("delay") != null) {
-      delay = Integer.valueOf(request.getParameter("delay"));
-    } else {
-      delay = uploadDelay;
+  /**
+   * Answers an upload refused by the admission control without reading it, with 503 and the
+   * seconds to wait before sending it again.
+   */
+  protected void refuseUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (logger.isDebugEnabled()) {
+      logger.debug("refusing upload from " + getClientKey(request) + ", " + admission.getUploads() + " uploads and " + admission.getBytes()
+          + " bytes in flight");
     }
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    response.setHeader("Retry-After", String.valueOf(retryAfter));
+    renderXmlResponse(request, response, wrapXml("wait", String.valueOf(retryAfter)));
+  }
 
+  /** Override this method to change how clients are told apart by the admission control, like behind a proxy. */
+  protected String getClientKey(HttpServletRequest request) {
+    return request.getRemoteAddr();
+  }
+
+  /** @return the declared size of the request, which may be over 2GB, or -1 */
+  private long getContentLength(HttpServletRequest request) {
+    try {
+      final String length = request.getHeader("Content-Length");
+      return length != null ? Long.parseLong(length) : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  protected void parsePostRequest(HttpServletRequest request, HttpServletResponse response) throws UploadErrorException, FileUploadException, IOException {
     // set file upload progress listener to store status in the db
     final Integer fileToken = getToken(request, "fileToken");
     if (fileToken == null) {
       throw new UploadErrorException("Missing token");
-    } else {
+    } else if (logger.isDebugEnabled()) {
       logger.debug("(" + fileToken + ") new upload request received.");
     }
 
+    // clients that get the progress from the browser don't need it saved
+    final ProgressSavePolicy policy = isProgressRequested(request) ? savePolicy : null;
+
+    CancellationRegistry.Handle cancellation = null;
     try {
+      // registered before the old error is reset, so a cancel sent meanwhile reaches the handle
+      cancellation = cancellations.register(fileToken);
       // reset any old error in case they are trying again
       repo.saveError(fileToken, null);
 
@@ -159,12 +484,19 @@ public abstract class UploadServlet extends HttpServlet {
       // Create the factory used for uploading files,
       ServletFileUpload uploader = new ServletFileUpload();
       uploader.setSizeMax(maxSize);
-      uploader.setProgressListener(new UploadListener(repo, fileToken, delay));
+
+      if (savePipeline != null) {
+        parseMultipleFiles(request, uploader, fileToken, policy, cancellation);
+        return;
+      }
+      final UploadListener listener = new UploadListener(repo, fileToken, policy, cancellation);
 
       // Receive the files--well, file, I hacked this to only support 1 file
-      logger.debug("(" + fileToken + ") parsing HTTP POST request");
+      if (logger.isDebugEnabled()) {
+        logger.debug("(" + fileToken + ") parsing HTTP POST request");
+      }
       boolean found = false;
-      for (final FileItemIterator i = uploader.getItemIterator(request); i.hasNext() && !found;) {
+      for (final FileItemIterator i = getItemIterator(request, uploader, listener); i.hasNext() && !found;) {
         FileItemStream s = i.next();
         if (!s.isFormField()) {
           InputStream in = s.openStream();
@@ -176,10 +508,15 @@ public abstract class UploadServlet extends HttpServlet {
           found = true;
         }
       }
-      logger.debug("(" + fileToken + ") parsed request, item received.");
+      if (logger.isDebugEnabled()) {
+        logger.debug("(" + fileToken + ") parsed request, item received.");
+      }
 
       if (!found) { throw new UploadErrorException("File was empty"); // so that we repo.saveError
       }
+    } catch (MultipartStreamParser.SizeLimitException sle) {
+      repo.saveError(fileToken, sle.getMessage());
+      throw sle.toFileUploadException();
     } catch (IOException io) {
       repo.saveError(fileToken, io.getMessage());
       throw io;
@@ -195,62 +532,537 @@ public abstract class UploadServlet extends HttpServlet {
     } catch (RuntimeException e) {
       repo.saveError(fileToken, e.getMessage());
       throw e;
+    } finally {
+      if (cancellation != null) {
+        cancellations.unregister(cancellation);
+      }
+      wakeStatusRequests(fileToken);
+    }
+  }
+
+  /** @return the parts of the request, read by the fast parser when it is enabled, otherwise by commons-fileupload */
+  protected FileItemIterator getItemIterator(HttpServletRequest request, ServletFileUpload uploader, ProgressListener listener)
+      throws FileUploadException, IOException {
+    if (parserBufferSize > 0) {
+      return new MultipartStreamParser(request, parserBufferSize, MultipartStreamParser.DEFAULT_PROGRESS_STEP, maxSize, listener);
     }
+    uploader.setProgressListener(listener);
+    return uploader.getItemIterator(request);
+  }
+
+  /**
+   * Receives every file of the request, each one is stored by the save pipeline while the
+   * parser goes on with the next.
+   */
+  private void parseMultipleFiles(HttpServletRequest request, ServletFileUpload uploader, Integer fileToken, ProgressSavePolicy policy,
+      CancellationRegistry.Handle cancellation) throws UploadErrorException, FileUploadException, IOException {
+    final SavePipeline.Upload upload = savePipeline.start((MultipleFileRepository) repo, fileToken);
+    boolean finished = false;
+    try {
+      final UploadListener listener = new UploadListener(repo, fileToken, policy, cancellation, upload);
+      for (final FileItemIterator i = getItemIterator(request, uploader, listener); i.hasNext();) {
+        FileItemStream s = i.next();
+        if (!s.isFormField()) {
+          upload.add(s);
+        }
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("(" + fileToken + ") parsed request, " + upload.getItems() + " items received.");
+      }
+      if (upload.getItems() == 0) {
+        throw new UploadErrorException("File was empty");
+      }
+      upload.finish(policy != null);
+      finished = true;
+    } finally {
+      if (!finished) {
+        upload.abort();
+      }
+    }
+  }
+
+  /**
+   * Receives one chunk of a resumable upload. The body is the raw bytes of the range in the
+   * Content-Range header, <code>bytes start-end/total</code>, and its content type is the type
+   * of the file, so it mustn't be a form type. Chunk errors aren't saved as the upload error,
+   * the client retries them from the offset returned by <code>?resume=</code>.
+   *
+   * @return the ranges committed so far
+   */
+  protected ChunkRanges parseChunkRequest(HttpServletRequest request, HttpServletResponse response) throws UploadErrorException, FileUploadException,
+      IOException {
+    final Integer fileToken = getToken(request, "fileToken");
+    if (fileToken == null) {
+      throw new UploadErrorException("Missing token");
+    } else if (!supports(ChunkedFileRepository.class)) {
+      throw new UploadErrorException("Chunked uploads are not supported");
+    }
+    final String range = request.getHeader("Content-Range");
+    final long start, end, total;
+    try {
+      final String[] parts = range.replaceFirst("^bytes\\s+", "").split("[-/]");
+      start = Long.parseLong(parts[0].trim());
+      end = Long.parseLong(parts[1].trim());
+      total = Long.parseLong(parts[2].trim());
+    } catch (RuntimeException e) {
+      throw new UploadErrorException("Invalid Content-Range: " + range);
+    }
+    if (start < 0 || end < start || end >= total) {
+      throw new UploadErrorException("Invalid Content-Range: " + range);
+    } else if (total > maxSize) {
+      throw new UploadErrorException("File is too large: " + total + " bytes");
+    } else if (maxChunkSize > 0 && end - start + 1 > maxChunkSize) {
+      throw new UploadErrorException("Chunk is too large: " + (end - start + 1) + " bytes");
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("(" + fileToken + ") chunk received: " + range);
+    }
+
+    // Call to a method which the user can override
+    checkRequest(request);
+
+    final ChunkedFileRepository chunked = (ChunkedFileRepository) repo;
+    final CancellationRegistry.Handle cancellation = cancellations.register(fileToken);
+    try {
+      // looked at once registered, so a cancel is either saved already or signals the handle
+      if ("cancelled".equals(repo.loadProgress(fileToken).getMessage())) {
+        throw new UploadCancelledException();
+      }
+      final ChunkRanges known = chunked.loadChunks(fileToken);
+      final boolean progress = isProgressRequested(request);
+      final UploadListener listener = new UploadListener(repo, fileToken, progress ? savePolicy : null, cancellation);
+      final InputStream in = new ProgressInputStream(request.getInputStream(), listener, known != null ? known.getCommittedBytes() : 0, total);
+      final ChunkRanges ranges = chunked.saveChunk(fileToken, start, end - start + 1, total, request.getContentType(), in, request);
+      if (progress) {
+        repo.saveProgress(fileToken, ranges.getCommittedBytes(), total);
+      }
+      return ranges;
+    } finally {
+      cancellations.unregister(cancellation);
+      wakeStatusRequests(fileToken);
+    }
+  }
+
+  /** @return true if the repository implements the capability, and it works with the repository it wraps, if any */
+  protected boolean supports(Class<? extends FileRepository> capability) {
+    return capability.isInstance(repo) && (!(repo instanceof WrappingFileRepository) || ((WrappingFileRepository) repo).supports(capability));
+  }
+
+  /**
+   * @return false if the client sent <code>progress=false</code> because it follows the progress
+   *         by itself, like XMLHttpRequest uploads, so it is never saved in the repository
+   */
+  protected boolean isProgressRequested(HttpServletRequest request) {
+    return !"false".equals(request.getParameter("progress"));
   }
 
   /** Override this method if you want to check the request before it is passed to commons-fileupload parser. */
   protected void checkRequest(HttpServletRequest request) throws SizeLimitExceededException {
-    logger.debug("procesing a request with size: " + request.getContentLength() + " bytes.");
+    if (logger.isDebugEnabled()) {
+      logger.debug("procesing a request with size: " + request.getContentLength() + " bytes.");
+    }
     if (request.getContentLength() > maxSize)
       throw new SizeLimitExceededException("File", maxSize, request.getContentLength());
   }
 
+  /**
+   * @deprecated override {@link #appendUploadStatus} instead, which renders status requests without
+   * building strings; overrides of this method are still used for the xml status, at that cost
+   */
+  @Deprecated
   protected String getUploadStatus(Integer fileToken) {
-    final StringBuilder sb = new StringBuilder();
-    final FileProgress progress = repo.loadProgress(fileToken);
+    return appendUploadStatus(ResponseBuffer.get(), fileToken, repo.loadProgress(fileToken)).toString();
+  }
 
+  /** @return the status of an upload in xml, from getUploadStatus(Integer) when a subclass overrides it */
+  protected String getUploadStatus(Integer fileToken, FileProgress progress) {
+    if (legacyStatus) {
+      return getUploadStatus(fileToken);
+    }
+    return appendUploadStatus(ResponseBuffer.get(), fileToken, progress).toString();
+  }
+
+  /** @return true if a subclass overrides getUploadStatus(Integer), so status requests have to go through it */
+  private boolean overridesUploadStatus() {
+    for (Class<?> c = getClass(); c != UploadServlet.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod("getUploadStatus", Integer.class);
+        return true;
+      } catch (NoSuchMethodException e) {
+        // not in this class
+      }
+    }
+    return false;
+  }
+
+  /** Renders the status of an upload from precomputed fragments, this is the most frequent request. */
+  protected ResponseBuffer appendUploadStatus(ResponseBuffer out, Integer fileToken, FileProgress progress) {
     if (progress.getMessage() != null) {
-      logger.debug("(" + fileToken + ") status message: " + progress.getMessage());
+      if (logger.isDebugEnabled()) {
+        logger.debug("(" + fileToken + ") status message: " + progress.getMessage());
+      }
       if ("cancelled".equals(progress.getMessage())) {
-        sb.append(wrapXml("cancelled", "true"));
-        sb.append(finishedXml("cancelled"));
+        out.append(STATUS_CANCELLED);
       } else {
-        sb.append(wrapXml("error", progress.getMessage()));
-        sb.append(finishedXml("error"));
+        out.append(STATUS_ERROR_OPEN).appendEscaped(progress.getMessage()).append(STATUS_ERROR_CLOSE);
       }
 
     } else {
-      logger.debug("(" + fileToken + ") status percent: " + progress.getPercent() + "%");
-      sb.append(wrapXml("percent", String.valueOf(progress.getPercent())));
-      sb.append(wrapXml("currentBytes", String.valueOf(progress.getCurrentBytes())));
-      sb.append(wrapXml("totalBytes", String.valueOf(progress.getTotalBytes())));
-      if (progress.getPercent() >= 100) {
-        sb.append(finishedXml("OK"));
+      final int percent = progress.getPercent();
+      if (logger.isDebugEnabled()) {
+        logger.debug("(" + fileToken + ") status percent: " + percent + "%");
+      }
+      out.append(STATUS_PERCENT_OPEN).append(percent);
+      out.append(STATUS_PERCENT_CLOSE).append(progress.getCurrentBytes());
+      out.append(STATUS_CURRENT_CLOSE).append(progress.getTotalBytes());
+      out.append(STATUS_TOTAL_CLOSE);
+      if (progress.getItem() > 0) {
+        out.append(STATUS_ITEM_OPEN).append(progress.getItem());
+        out.append(STATUS_ITEM_CLOSE).append(progress.getStoredItems()).append(STATUS_STORED_CLOSE);
+      }
+      if (percent >= 100) {
+        out.append(STATUS_FINISHED);
       }
     }
+    return out;
+  }
 
-    return sb.toString();
+  /** Renders the status of an upload as a json object, with the same fields as the xml format. */
+  protected ResponseBuffer appendUploadStatusJson(ResponseBuffer out, Integer fileToken, FileProgress progress) {
+    if (progress.getMessage() != null) {
+      if ("cancelled".equals(progress.getMessage())) {
+        out.append(JSON_CANCELLED);
+      } else {
+        out.append(JSON_ERROR_OPEN).appendJsonString(progress.getMessage()).append(JSON_ERROR_CLOSE);
+      }
+    } else {
+      final int percent = progress.getPercent();
+      out.append(JSON_PERCENT_OPEN).append(percent);
+      out.append(JSON_CURRENT).append(progress.getCurrentBytes());
+      out.append(JSON_TOTAL).append(progress.getTotalBytes());
+      if (progress.getItem() > 0) {
+        out.append(JSON_ITEM).append(progress.getItem()).append(JSON_STORED).append(progress.getStoredItems());
+      }
+      if (percent >= 100) {
+        out.append(JSON_FINISHED);
+      }
+      out.append(JSON_CLOSE);
+    }
+    return out;
   }
 
-  protected void renderXmlResponse(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
-    response.setContentType("text/html");
+  /**
+   * Sends the status of an upload, written straight to the output stream with its Content-Length.
+   * It is json when the client asks for it, otherwise xml.
+   */
+  protected void renderStatusResponse(HttpServletRequest request, HttpServletResponse response, Integer fileToken, FileProgress progress) throws IOException {
+    if (isJsonRequested(request)) {
+      appendUploadStatusJson(ResponseBuffer.get(), fileToken, progress).writeTo(response, JSON_CONTENT_TYPE);
+      return;
+    } else if (legacyStatus) {
+      renderXmlResponse(request, response, getUploadStatus(fileToken, progress));
+      return;
+    }
+    final ResponseBuffer out = ResponseBuffer.get().append(XML_HEAD);
+    appendUploadStatus(out, fileToken, progress).append(XML_TAIL).writeTo(response, CONTENT_TYPE);
+  }
+
+  /** Writes a Server-Sent Event with the status, the first one also sets the stream headers and reconnect delay. */
+  protected void renderStatusEvent(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
+    final boolean first = !response.isCommitted();
+    if (first) {
+      response.setContentType("text/event-stream");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+    }
     PrintWriter out = response.getWriter();
-    try {
-      out.print(XML_TPL.replace("%%MESSAGE%%", message != null ? message : ""));
-      out.flush();
-    } finally {
-      IOUtils.closeQuietly(out);
+    if (first) {
+      out.print("retry: " + EVENTS_RETRY + "\n");
     }
+    // a line break ends the field, so each line of the payload goes in a data field of its own
+    final String data = "<response>" + (message != null ? message : "") + "</response>";
+    int start = 0;
+    for (int i = 0; i <= data.length(); i++) {
+      final char c = i < data.length() ? data.charAt(i) : '\n';
+      if (c == '\n' || c == '\r') {
+        out.print("data: ");
+        out.write(data, start, i - start);
+        out.print('\n');
+        if (c == '\r' && i + 1 < data.length() && data.charAt(i + 1) == '\n') {
+          i++;
+        }
+        start = i + 1;
+      }
+    }
+    out.print('\n');
+    out.flush();
+    response.flushBuffer();
+  }
+
+  /** Sends an error message, as json when the client asks for it, otherwise as xml. */
+  protected void renderErrorResponse(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
+    if (isJsonRequested(request)) {
+      ResponseBuffer.get().append(JSON_ERROR_OPEN).appendJsonString(message).append(JSON_ERROR_CLOSE).writeTo(response, JSON_CONTENT_TYPE);
+    } else {
+      renderXmlResponse(request, response, errorXml(message));
+    }
+  }
+
+  /** @return true if the client asked for json, with the format=json parameter or the Accept header */
+  protected boolean isJsonRequested(HttpServletRequest request) {
+    final String format = request.getParameter("format");
+    if (format != null) {
+      return "json".equals(format);
+    }
+    final String accept = request.getHeader("Accept");
+    return accept != null && accept.indexOf(JSON_CONTENT_TYPE) >= 0;
+  }
+
+  protected void renderXmlResponse(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
+    final ResponseBuffer out = ResponseBuffer.get().append(XML_HEAD);
+    if (message != null) {
+      out.appendRaw(message);
+    }
+    out.append(XML_TAIL).writeTo(response, CONTENT_TYPE);
   }
 
   protected Integer getToken(HttpServletRequest request, String paramName) {
     try {
-      return new Integer(request.getParameter(paramName));
+      return Integer.valueOf(request.getParameter(paramName));
     } catch (RuntimeException e) {
       return null;
     }
   }
 
+  /** @return the valid tokens in a comma separated parameter, or null if there are more than MAX_BATCH_TOKENS */
+  protected Collection<Integer> getTokens(HttpServletRequest request, String paramName) {
+    final Set<Integer> fileTokens = new LinkedHashSet<Integer>();
+    final String value = request.getParameter(paramName);
+    if (value != null) {
+      for (String token : value.split(",")) {
+        try {
+          fileTokens.add(Integer.valueOf(token.trim()));
+        } catch (NumberFormatException e) {
+          // skip it
+        }
+        if (fileTokens.size() > MAX_BATCH_TOKENS) {
+          return null;
+        }
+      }
+    }
+    return fileTokens;
+  }
+
+  /** Loads the progress of several tokens, in one call if the repository supports it. */
+  protected Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    if (repo instanceof BulkFileRepository) {
+      return ((BulkFileRepository) repo).loadProgress(fileTokens);
+    }
+    final Map<Integer, FileProgress> progress = new HashMap<Integer, FileProgress>();
+    for (Integer fileToken : fileTokens) {
+      progress.put(fileToken, repo.loadProgress(fileToken));
+    }
+    return progress;
+  }
+
+  /** @return the value of a numeric parameter, or -1 if missing or invalid */
+  protected long getLong(HttpServletRequest request, String paramName) {
+    try {
+      final String value = request.getParameter(paramName);
+      return value != null ? Long.parseLong(value) : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Sends the data of an upload with its ETag and Last-Modified, answering conditional requests
+   * with 304 Not Modified and a single byte range with 206 Partial Content. Requests for several
+   * ranges get the whole file.
+   *
+   * @return false if the repository can't describe the data, so it has to be sent with sendData
+   */
+  protected boolean sendStoredData(HttpServletRequest request, HttpServletResponse response, Integer fileToken, int item) throws IOException {
+    if (!(repo instanceof RangedFileRepository)) {
+      return false;
+    }
+    final StoredData data = ((RangedFileRepository) repo).loadData(fileToken, item);
+    if (data == null) {
+      return false;
+    }
+    try {
+      final long size = data.getSize();
+      response.setHeader("Accept-Ranges", "bytes");
+      response.setHeader("ETag", data.getETag());
+      response.setDateHeader("Last-Modified", data.getLastModified());
+      if (cacheControl != null) {
+        response.setHeader("Cache-Control", cacheControl);
+      }
+      if (isNotModified(request, data)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+      }
+
+      long offset = 0;
+      long length = size;
+      final long[] range = getRange(request, data);
+      if (range != null && range.length == 0) {
+        response.setHeader("Content-Range", "bytes */" + size);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return true;
+      } else if (range != null) {
+        offset = range[0];
+        length = range[1] - range[0] + 1;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+      }
+      response.setContentType(data.getContentType());
+      response.setHeader("Content-Length", String.valueOf(length));
+      if (!"HEAD".equals(request.getMethod())) {
+        data.writeTo(offset, length, response.getOutputStream());
+      }
+      response.flushBuffer();
+      return true;
+    } finally {
+      data.close();
+    }
+  }
+
+  /** @return true if the client's copy, given by If-None-Match or else If-Modified-Since, is current */
+  private boolean isNotModified(HttpServletRequest request, StoredData data) {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(data.getETag())) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final long since = getDateHeader(request, "If-Modified-Since");
+    return since >= 0 && data.getLastModified() / 1000 <= since / 1000;
+  }
+
+  /**
+   * @return the first and last byte of the one range requested, an empty array if it is out of the
+   *         file, or null to send the whole file
+   */
+  private long[] getRange(HttpServletRequest request, StoredData data) {
+    final String header = request.getHeader("Range");
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    final String ifRange = request.getHeader("If-Range");
+    if (ifRange != null) {
+      // the range applies only to the version the client has, an entity tag or a date
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+        if (!ifRange.equals(data.getETag())) {
+          return null;
+        }
+      } else {
+        final long date = getDateHeader(request, "If-Range");
+        if (date < 0 || date / 1000 != data.getLastModified() / 1000) {
+          return null;
+        }
+      }
+    }
+    final long size = data.getSize();
+    final String spec = header.substring(6).trim();
+    final int dash = spec.indexOf('-');
+    try {
+      if (dash < 0) {
+        return null;
+      } else if (dash == 0) { // the last n bytes
+        final long n = Long.parseLong(spec.substring(1).trim());
+        return n > 0 && size > 0 ? new long[] { Math.max(0, size - n), size - 1 } : new long[0];
+      }
+      final long start = Long.parseLong(spec.substring(0, dash).trim());
+      final String last = spec.substring(dash + 1).trim();
+      final long end = last.length() > 0 ? Long.parseLong(last) : Long.MAX_VALUE;
+      if (end < start) {
+        return null;
+      }
+      return start < size ? new long[] { start, Math.min(end, size - 1) } : new long[0];
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** @return the date in a header, or -1 if it is missing or malformed */
+  private long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /** Removes the upload in the remove parameter, or the comma separated ones in the clean parameter. */
+  protected void removeUploads(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    try {
+      // Call to a method which the user can override
+      checkRequest(request);
+    } catch (SizeLimitExceededException e) {
+      renderXmlResponse(request, response, errorXml(e.getMessage()));
+      return;
+    }
+    final Collection<Integer> fileTokens;
+    if (request.getParameter("remove") != null) {
+      final Integer fileToken = getToken(request, "remove");
+      fileTokens = fileToken != null ? Collections.singleton(fileToken) : Collections.<Integer> emptySet();
+    } else {
+      fileTokens = getTokens(request, "clean");
+    }
+    if (fileTokens == null) {
+      renderXmlResponse(request, response, errorXml("Too many tokens, at most " + MAX_BATCH_TOKENS));
+    } else if (fileTokens.isEmpty()) {
+      renderXmlResponse(request, response, errorXml("Missing token"));
+    } else if (deletions == null) {
+      renderXmlResponse(request, response, errorXml("Uploads can't be removed"));
+    } else {
+      deletions.remove(fileTokens);
+      renderXmlResponse(request, response, finishedXml("OK"));
+    }
+  }
+
+  /**
+   * Makes an upload point to stored content with the same digest and size, so the client
+   * doesn't have to send it. Only done when the <code>instantUploads</code> parameter is true,
+   * since knowing the digest and size of a file is then enough to read it.
+   *
+   * @return false if it isn't enabled or the repository doesn't have that content
+   */
+  protected boolean linkContent(Integer fileToken, String digest, String algorithm, long size) throws IOException {
+    if (!instantUploads || !(repo instanceof ContentAddressedFileRepository)) {
+      return false;
+    }
+    final ContentAddressedFileRepository contents = (ContentAddressedFileRepository) repo;
+    if (algorithm != null && !algorithm.equalsIgnoreCase(contents.getAlgorithm()) || !contents.link(fileToken, digest, size)) {
+      return false;
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("(" + fileToken + ") linked to stored content " + digest);
+    }
+    repo.saveError(fileToken, null);
+    repo.saveProgress(fileToken, size, size);
+    wakeStatusRequests(fileToken);
+    return true;
+  }
+
+  /** Answers the status requests parked for a token, if any, without waiting for the next check. */
+  protected void wakeStatusRequests(Integer fileToken) {
+    if (statusWatcher != null) {
+      statusWatcher.wake(fileToken);
+    }
+  }
+
+  /** @return the offset a client resumes from, the committed ranges and whether the upload is complete */
+  protected String chunksXml(ChunkRanges ranges) {
+    return wrapXml("offset", String.valueOf(ranges.getOffset())) + wrapXml("ranges", ranges.toString())
+        + (ranges.isComplete() ? finishedXml("OK") : "");
+  }
+
   protected String errorXml(String message) {
     return "<error>" + message + "</error>";
   }
@@ -264,4 +1076,20 @@ public abstract class UploadServlet extends HttpServlet {
   }
 
   protected abstract FileRepository newFileRepository();
+
+  /**
+   * Override this method to change how cancels reach uploads running in other nodes. By default
+   * the repository shared by the nodes is checked every cancelPollInterval milliseconds, 2000
+   * unless the parameter is set; 0 leaves cancels to the uploads of this node only.
+   */
+  protected CancellationNotifier newCancellationNotifier() {
+    String interval = getServletContext().getInitParameter("cancelPollInterval");
+    long millis = interval != null ? Long.parseLong(interval) : 2000;
+    return millis > 0 ? new RepositoryCancellationNotifier(repo, millis) : null;
+  }
+
+  /** Override this method to change how often the upload progress is saved into the repository. */
+  protected ProgressSavePolicy newProgressSavePolicy() {
+    return new AdaptiveSavePolicy();
+  }
 }
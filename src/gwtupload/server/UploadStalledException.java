@@ -0,0 +1,12 @@
+package gwtupload.server;
+
+import java.io.IOException;
+
+/** Thrown by the request stream of an upload that has been received too slowly. */
+public class UploadStalledException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public UploadStalledException(String errorMessage) {
+    super(errorMessage);
+  }
+}
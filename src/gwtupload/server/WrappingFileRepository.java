@@ -0,0 +1,16 @@
+package gwtupload.server;
+
+/**
+ * A {@link FileRepository} that wraps another one. It implements the optional interfaces
+ * whatever the wrapped repository is, and passes most of their calls on, so which of them
+ * really work depends on the wrapped repository; the servlet asks before relying on them.
+ */
+public interface WrappingFileRepository extends FileRepository {
+
+  /**
+   * @param capability one of the interfaces extending {@link FileRepository}, like {@link MultipleFileRepository}
+   * @return true if this repository implements it and its calls work with the wrapped repository
+   */
+  boolean supports(Class<? extends FileRepository> capability);
+
+}
@@ -0,0 +1,283 @@
+package gwtupload.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Wraps a {@link FileRepository} so progress and error saves are buffered in memory and
+ * written to it in batches.
+ *
+ * Only the latest progress and message of each token is kept, and a background thread
+ * flushes them every <code>flushInterval</code> milliseconds, in a single call when the
+ * wrapped repository is a {@link BulkFileRepository}. <code>loadProgress</code> sees the
+ * values that are still pending, so the servlet always reads its own writes.
+ *
+ * Data is passed straight through, files after the first of a multi-file upload, chunks and
+ * ranges only when the wrapped repository supports them, which {@link #supports} tells, and so
+ * are removals, after dropping the pending values. Call {@link #close()} to flush what is left.
+ */
+public class WriteBehindFileRepository implements BulkFileRepository, MultipleFileRepository, ChunkedFileRepository, RangedFileRepository,
+    RemovableFileRepository, WrappingFileRepository, Closeable {
+
+  private static final Logger logger = Logger.getLogger(WriteBehindFileRepository.class);
+  private final FileRepository delegate;
+  private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+  private final ScheduledExecutorService scheduler;
+
+  public WriteBehindFileRepository(FileRepository delegate, long flushInterval) {
+    this.delegate = delegate;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gwtupload-flush"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          logger.error("Error flushing upload progress: " + e.getMessage(), e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  public void saveData(Integer fileToken, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    delegate.saveData(fileToken, contentType, data, request);
+  }
+
+  public void saveData(Integer fileToken, int item, String contentType, InputStream data, HttpServletRequest request) throws IOException, UploadErrorException {
+    if (delegate instanceof MultipleFileRepository) {
+      ((MultipleFileRepository) delegate).saveData(fileToken, item, contentType, data, request);
+    } else if (item == 0) {
+      delegate.saveData(fileToken, contentType, data, request);
+    } else {
+      throw new UploadErrorException("Only one file can be uploaded");
+    }
+  }
+
+  public ChunkRanges saveChunk(Integer fileToken, long offset, long length, long totalBytes, String contentType, InputStream data, HttpServletRequest request)
+      throws IOException, UploadErrorException {
+    if (!(delegate instanceof ChunkedFileRepository)) {
+      throw new UploadErrorException("Chunked uploads are not supported");
+    }
+    return ((ChunkedFileRepository) delegate).saveChunk(fileToken, offset, length, totalBytes, contentType, data, request);
+  }
+
+  public ChunkRanges loadChunks(Integer fileToken) {
+    return delegate instanceof ChunkedFileRepository ? ((ChunkedFileRepository) delegate).loadChunks(fileToken) : null;
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes) {
+    saveProgress(fileToken, currentBytes, totalBytes, 0, 0);
+  }
+
+  public void saveProgress(Integer fileToken, long currentBytes, long totalBytes, int item, int storedItems) {
+    for (;;) {
+      final Pending old = pending.get(fileToken);
+      if (old == null) {
+        if (pending.putIfAbsent(fileToken, new Pending(true, currentBytes, totalBytes, item, storedItems, false, null)) == null) {
+          return;
+        }
+      } else if (pending.replace(fileToken, old, new Pending(true, currentBytes, totalBytes, item, storedItems, old.hasMessage, old.message))) {
+        return;
+      }
+    }
+  }
+
+  public void saveProgress(Map<Integer, FileProgress> progress) {
+    for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+      final FileProgress p = e.getValue();
+      saveProgress(e.getKey(), p.getCurrentBytes(), p.getTotalBytes(), p.getItem(), p.getStoredItems());
+    }
+  }
+
+  public void saveError(Integer fileToken, String message) {
+    for (;;) {
+      final Pending old = pending.get(fileToken);
+      if (old == null) {
+        if (pending.putIfAbsent(fileToken, new Pending(false, 0, 0, 0, 0, true, message)) == null) {
+          return;
+        }
+      } else if (pending.replace(fileToken, old, new Pending(old.hasProgress, old.currentBytes, old.totalBytes, old.item, old.storedItems, true, message))) {
+        return;
+      }
+    }
+  }
+
+  public FileProgress loadProgress(Integer fileToken) {
+    final Pending p = pending.get(fileToken);
+    if (p == null) {
+      return delegate.loadProgress(fileToken);
+    }
+    if (p.hasProgress && p.hasMessage) {
+      return new FileProgress(p.message, p.currentBytes, p.totalBytes, p.item, p.storedItems);
+    }
+    return merge(p, delegate.loadProgress(fileToken));
+  }
+
+  public Map<Integer, FileProgress> loadProgress(Collection<Integer> fileTokens) {
+    final Map<Integer, FileProgress> progress = new HashMap<Integer, FileProgress>();
+    final List<Integer> stored = new ArrayList<Integer>();
+    for (Integer fileToken : fileTokens) {
+      final Pending p = pending.get(fileToken);
+      if (p != null && p.hasProgress && p.hasMessage) {
+        progress.put(fileToken, new FileProgress(p.message, p.currentBytes, p.totalBytes, p.item, p.storedItems));
+      } else {
+        stored.add(fileToken);
+      }
+    }
+    if (stored.isEmpty()) {
+      return progress;
+    }
+    if (delegate instanceof BulkFileRepository) {
+      progress.putAll(((BulkFileRepository) delegate).loadProgress(stored));
+    } else {
+      for (Integer fileToken : stored) {
+        progress.put(fileToken, delegate.loadProgress(fileToken));
+      }
+    }
+    // values saved in the meantime win over the stored ones
+    for (Integer fileToken : stored) {
+      final Pending p = pending.get(fileToken);
+      if (p != null) {
+        progress.put(fileToken, merge(p, progress.get(fileToken)));
+      }
+    }
+    return progress;
+  }
+
+  public StoredData loadData(Integer fileToken, int item) throws IOException {
+    return delegate instanceof RangedFileRepository ? ((RangedFileRepository) delegate).loadData(fileToken, item) : null;
+  }
+
+  public void sendData(Integer fileToken, HttpServletResponse response) throws IOException {
+    delegate.sendData(fileToken, response);
+  }
+
+  public void sendData(Integer fileToken, int item, HttpServletResponse response) throws IOException {
+    if (delegate instanceof MultipleFileRepository) {
+      ((MultipleFileRepository) delegate).sendData(fileToken, item, response);
+    } else if (item == 0) {
+      delegate.sendData(fileToken, response);
+    } else {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
+
+  public void remove(Collection<Integer> fileTokens) {
+    for (Integer fileToken : fileTokens) {
+      pending.remove(fileToken);
+    }
+    if (delegate instanceof RemovableFileRepository) {
+      ((RemovableFileRepository) delegate).remove(fileTokens);
+    }
+  }
+
+  public Collection<Integer> findExpired(long before) {
+    if (!(delegate instanceof RemovableFileRepository)) {
+      return new ArrayList<Integer>();
+    }
+    // uploads with unsaved values are still active
+    final List<Integer> expired = new ArrayList<Integer>(((RemovableFileRepository) delegate).findExpired(before));
+    expired.removeAll(pending.keySet());
+    return expired;
+  }
+
+  /** Progress is saved in bulk here, the other capabilities are the wrapped repository's. */
+  public boolean supports(Class<? extends FileRepository> capability) {
+    if (!capability.isInstance(this)) {
+      return false;
+    } else if (capability == FileRepository.class || capability == BulkFileRepository.class) {
+      return true;
+    }
+    return capability.isInstance(delegate) && (!(delegate instanceof WrappingFileRepository) || ((WrappingFileRepository) delegate).supports(capability));
+  }
+
+  /** Writes the pending values into the wrapped repository. */
+  public void flush() {
+    final Map<Integer, Pending> flushed = new HashMap<Integer, Pending>();
+    final Map<Integer, FileProgress> progress = new HashMap<Integer, FileProgress>();
+    for (Map.Entry<Integer, Pending> e : pending.entrySet()) {
+      final Pending p = e.getValue();
+      if (p.hasMessage) {
+        delegate.saveError(e.getKey(), p.message);
+      }
+      if (p.hasProgress) {
+        progress.put(e.getKey(), new FileProgress(null, p.currentBytes, p.totalBytes, p.item, p.storedItems));
+      }
+      flushed.put(e.getKey(), p);
+    }
+    if (progress.isEmpty()) {
+      // nothing to save
+    } else if (delegate instanceof BulkFileRepository) {
+      ((BulkFileRepository) delegate).saveProgress(progress);
+    } else if (delegate instanceof MultipleFileRepository) {
+      for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+        final FileProgress p = e.getValue();
+        ((MultipleFileRepository) delegate).saveProgress(e.getKey(), p.getCurrentBytes(), p.getTotalBytes(), p.getItem(), p.getStoredItems());
+      }
+    } else {
+      for (Map.Entry<Integer, FileProgress> e : progress.entrySet()) {
+        delegate.saveProgress(e.getKey(), e.getValue().getCurrentBytes(), e.getValue().getTotalBytes());
+      }
+    }
+    // values changed while flushing stay pending until the next flush
+    for (Map.Entry<Integer, Pending> e : flushed.entrySet()) {
+      pending.remove(e.getKey(), e.getValue());
+    }
+  }
+
+  /** Stops the background thread and flushes the pending values. */
+  public void close() throws IOException {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /** @return the stored progress with the pending values on top */
+  private static FileProgress merge(Pending p, FileProgress stored) {
+    return new FileProgress(p.hasMessage ? p.message : stored.getMessage(), //
+        p.hasProgress ? p.currentBytes : stored.getCurrentBytes(), //
+        p.hasProgress ? p.totalBytes : stored.getTotalBytes(), //
+        p.hasProgress ? p.item : stored.getItem(), //
+        p.hasProgress ? p.storedItems : stored.getStoredItems());
+  }
+
+  /** The latest unsaved values of one token; immutable so it can be swapped atomically. */
+  private static final class Pending {
+    final boolean hasProgress;
+    final long currentBytes;
+    final long totalBytes;
+    final int item;
+    final int storedItems;
+    final boolean hasMessage;
+    final String message;
+
+    Pending(boolean hasProgress, long currentBytes, long totalBytes, int item, int storedItems, boolean hasMessage, String message) {
+      this.hasProgress = hasProgress;
+      this.currentBytes = currentBytes;
+      this.totalBytes = totalBytes;
+      this.item = item;
+      this.storedItems = storedItems;
+      this.hasMessage = hasMessage;
+      this.message = message;
+    }
+  }
+
+}
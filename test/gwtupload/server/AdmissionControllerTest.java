@@ -0,0 +1,151 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Admits and releases uploads in an {@link AdmissionController}, checking its counters go back
+ * to 0 and the counter of a client is removed when its last upload is done.
+ */
+public class AdmissionControllerTest {
+
+  @Test
+  public void refusesUploadsOverTheLimit() {
+    final AdmissionController admission = new AdmissionController(2, 0, 0);
+    final AdmissionController.Ticket first = admission.tryAcquire("a", 10);
+    final AdmissionController.Ticket second = admission.tryAcquire("b", 10);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(admission.tryAcquire("c", 10));
+    assertEquals(2, admission.getUploads());
+    assertEquals(20, admission.getBytes());
+
+    first.release();
+    assertNotNull(admission.tryAcquire("c", 10));
+  }
+
+  @Test
+  public void refusesBytesOverTheLimitAndRollsBack() {
+    final AdmissionController admission = new AdmissionController(0, 100, 0);
+    final AdmissionController.Ticket first = admission.tryAcquire("a", 60);
+    assertNotNull(first);
+    assertNull(admission.tryAcquire("b", 50));
+    assertEquals(1, admission.getUploads());
+    assertEquals(60, admission.getBytes());
+
+    // an unknown length is counted as 0
+    final AdmissionController.Ticket unknown = admission.tryAcquire("b", -1);
+    assertNotNull(unknown);
+    assertEquals(60, admission.getBytes());
+    unknown.release();
+    first.release();
+    assertEquals(0, admission.getUploads());
+    assertEquals(0, admission.getBytes());
+  }
+
+  @Test
+  public void letsAnOversizedUploadInWhenNothingElseIs() {
+    final AdmissionController admission = new AdmissionController(0, 100, 0);
+    final AdmissionController.Ticket big = admission.tryAcquire("a", 1000);
+    assertNotNull(big);
+    assertNull(admission.tryAcquire("b", 1));
+    big.release();
+    assertNotNull(admission.tryAcquire("b", 1));
+  }
+
+  @Test
+  public void refusesClientsOverTheirLimitAndRollsBack() {
+    final AdmissionController admission = new AdmissionController(0, 0, 1);
+    final AdmissionController.Ticket first = admission.tryAcquire("a", 10);
+    assertNotNull(first);
+    assertNull(admission.tryAcquire("a", 10));
+    assertEquals(1, admission.getUploads());
+    assertEquals(10, admission.getBytes());
+    assertEquals(1, admission.getClients());
+
+    assertNotNull(admission.tryAcquire("b", 10));
+    assertEquals(2, admission.getClients());
+    first.release();
+    assertEquals(1, admission.getClients());
+    assertNotNull(admission.tryAcquire("a", 10));
+  }
+
+  @Test
+  public void releaseCountsOnce() {
+    final AdmissionController admission = new AdmissionController(1, 100, 1);
+    final AdmissionController.Ticket ticket = admission.tryAcquire("a", 10);
+    final AdmissionController.Ticket other = admission.tryAcquire("a", 10);
+    assertNull(other);
+    ticket.release();
+    ticket.release();
+    assertEquals(0, admission.getUploads());
+    assertEquals(0, admission.getBytes());
+    assertEquals(0, admission.getClients());
+
+    final AdmissionController.Ticket again = admission.tryAcquire("a", 10);
+    assertNotNull(again);
+    ticket.release();
+    assertEquals(1, admission.getUploads());
+    assertNull(admission.tryAcquire("a", 10));
+  }
+
+  @Test
+  public void concurrentUploadsLeaveNothingBehind() throws Exception {
+    final int perClient = 1;
+    final AdmissionController admission = new AdmissionController(0, 0, perClient);
+    final String[] clients = { "a", "b" };
+    final AtomicInteger[] held = new AtomicInteger[clients.length];
+    for (int i = 0; i < held.length; i++) {
+      held[i] = new AtomicInteger();
+    }
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      final Thread thread = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 100000; i++) {
+            final int client = (seed + i) % clients.length;
+            final AdmissionController.Ticket ticket = admission.tryAcquire(clients[client], 1);
+            if (ticket != null) {
+              if (held[client].incrementAndGet() > perClient) {
+                failure.set("More than " + perClient + " uploads admitted for " + clients[client]);
+              }
+              Thread.yield();
+              held[client].decrementAndGet();
+              ticket.release();
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get(), failure.get());
+    assertEquals(0, admission.getUploads());
+    assertEquals(0, admission.getBytes());
+    assertEquals(0, admission.getClients());
+    assertNotNull(admission.tryAcquire("a", 1));
+    assertNull(admission.tryAcquire("a", 1));
+  }
+
+}
@@ -0,0 +1,102 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Adds ranges to {@link ChunkRanges} in every order and checks the merged ranges, the offset and the parsed form. */
+public class ChunkRangesTest {
+
+  @Test
+  public void mergesAdjacentAndOverlappingRanges() {
+    final ChunkRanges ranges = new ChunkRanges(100);
+    assertFalse(ranges.add(0, 10));
+    assertFalse(ranges.add(10, 20));
+    assertEquals("0-19", ranges.toString());
+    assertFalse(ranges.add(15, 30));
+    assertEquals("0-29", ranges.toString());
+    assertEquals(30, ranges.getCommittedBytes());
+    assertEquals(30, ranges.getOffset());
+  }
+
+  @Test
+  public void countsRangesSentTwiceOnce() {
+    final ChunkRanges ranges = new ChunkRanges(100);
+    ranges.add(40, 50);
+    ranges.add(40, 50);
+    ranges.add(42, 48);
+    assertEquals("40-49", ranges.toString());
+    assertEquals(10, ranges.getCommittedBytes());
+  }
+
+  @Test
+  public void offsetStopsAtTheFirstGap() {
+    final ChunkRanges ranges = new ChunkRanges(100);
+    ranges.add(50, 60);
+    assertEquals(0, ranges.getOffset());
+    ranges.add(0, 20);
+    assertEquals(20, ranges.getOffset());
+    assertEquals("0-19,50-59", ranges.toString());
+    assertEquals(30, ranges.getCommittedBytes());
+    // filling the gap joins the three ranges
+    ranges.add(20, 50);
+    assertEquals("0-59", ranges.toString());
+    assertEquals(60, ranges.getOffset());
+  }
+
+  @Test
+  public void rangeSpanningSeveralMergesThemAll() {
+    final ChunkRanges ranges = new ChunkRanges(100);
+    ranges.add(10, 20);
+    ranges.add(30, 40);
+    ranges.add(50, 60);
+    ranges.add(90, 95);
+    ranges.add(15, 55);
+    assertEquals("10-59,90-94", ranges.toString());
+    assertEquals(55, ranges.getCommittedBytes());
+  }
+
+  @Test
+  public void reportsCompletionOnce() {
+    final ChunkRanges ranges = new ChunkRanges(30);
+    assertFalse(ranges.add(20, 30));
+    assertFalse(ranges.add(0, 10));
+    assertFalse(ranges.isComplete());
+    assertTrue(ranges.add(5, 25));
+    assertTrue(ranges.isComplete());
+    assertFalse(ranges.add(0, 30));
+    assertEquals(30, ranges.getCommittedBytes());
+  }
+
+  @Test
+  public void ignoresEmptyRanges() {
+    final ChunkRanges ranges = new ChunkRanges(10);
+    assertFalse(ranges.add(5, 5));
+    assertFalse(ranges.add(6, 2));
+    assertEquals("", ranges.toString());
+    assertEquals(0, ranges.getCommittedBytes());
+  }
+
+  @Test
+  public void parsesWhatItWrites() {
+    final ChunkRanges ranges = new ChunkRanges(1000);
+    ranges.add(0, 100);
+    ranges.add(200, 300);
+    ranges.add(999, 1000);
+    final ChunkRanges parsed = ChunkRanges.parse(ranges.toString(), 1000);
+    assertEquals("0-99,200-299,999-999", parsed.toString());
+    assertEquals(ranges.getCommittedBytes(), parsed.getCommittedBytes());
+    assertEquals(100, parsed.getOffset());
+    assertEquals(1000, parsed.getTotalBytes());
+  }
+
+  @Test
+  public void parsesNothingFromAnEmptyString() {
+    final ChunkRanges parsed = ChunkRanges.parse("", 10);
+    assertEquals(0, parsed.getCommittedBytes());
+    assertEquals(0, parsed.getOffset());
+  }
+
+}
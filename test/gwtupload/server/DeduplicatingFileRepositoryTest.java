@@ -0,0 +1,137 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stores and removes uploads in a {@link DeduplicatingFileRepository} over a memory repository,
+ * reopening it from its index as a restart would.
+ */
+public class DeduplicatingFileRepositoryTest {
+
+  private static final Integer A = Integer.valueOf(1);
+  private static final Integer B = Integer.valueOf(2);
+  private static final Integer C = Integer.valueOf(3);
+  private static final byte[] CONTENT = "the same content".getBytes();
+
+  private MemoryFileRepository stored;
+  private File index;
+
+  @Before
+  public void setUp() throws IOException {
+    stored = new MemoryFileRepository();
+    index = File.createTempFile("dedup", ".index");
+    index.delete();
+  }
+
+  @After
+  public void tearDown() {
+    index.delete();
+  }
+
+  @Test
+  public void contentUploadedAgainAfterRemovalSurvivesRestart() throws Exception {
+    DeduplicatingFileRepository repo = open();
+    save(repo, A, CONTENT);
+    repo.remove(Collections.singleton(A));
+    save(repo, B, CONTENT);
+    assertEquals(B, repo.getStoredToken(B));
+    repo.close();
+
+    repo = open();
+    assertEquals(B, repo.getStoredToken(B));
+    assertNull(repo.getStoredToken(A));
+    assertEquals(new String(CONTENT), load(repo, B));
+    repo.close();
+  }
+
+  @Test
+  public void sharedContentSurvivesRestart() throws Exception {
+    DeduplicatingFileRepository repo = open();
+    save(repo, A, CONTENT);
+    save(repo, B, CONTENT);
+    assertEquals(1, repo.getContents());
+    repo.remove(Collections.singleton(A));
+    repo.close();
+
+    repo = open();
+    assertEquals(A, repo.getStoredToken(B));
+    assertEquals(new String(CONTENT), load(repo, B));
+    repo.remove(Collections.singleton(B));
+    assertEquals(0, repo.getContents());
+    assertNull(stored.loadData(A, 0));
+    repo.close();
+  }
+
+  @Test
+  public void indexIsCompactedWhenLoaded() throws Exception {
+    DeduplicatingFileRepository repo = open();
+    save(repo, A, CONTENT);
+    save(repo, B, CONTENT);
+    save(repo, C, "other content".getBytes());
+    repo.remove(Collections.singleton(A));
+    repo.remove(Collections.singleton(C));
+    repo.close();
+    assertEquals(5, readIndex().size());
+
+    repo = open();
+    assertEquals(Collections.singletonList(B + " " + A + " " + repo.getDigest(B) + " " + CONTENT.length), readIndex());
+    // still appended to after the rewrite
+    save(repo, C, CONTENT);
+    repo.close();
+    assertEquals(2, readIndex().size());
+
+    repo = open();
+    assertEquals(A, repo.getStoredToken(C));
+    assertEquals(1, repo.getContents());
+    repo.close();
+  }
+
+  private DeduplicatingFileRepository open() throws IOException {
+    return new DeduplicatingFileRepository(stored, DeduplicatingFileRepository.DEFAULT_ALGORITHM, DeduplicatingFileRepository.DEFAULT_SPOOL_THRESHOLD,
+        null, index);
+  }
+
+  private static void save(FileRepository repo, Integer fileToken, byte[] content) throws Exception {
+    repo.saveData(fileToken, "text/plain", new ByteArrayInputStream(content), null);
+  }
+
+  private static String load(RangedFileRepository repo, Integer fileToken) throws IOException {
+    final StoredData data = repo.loadData(fileToken, 0);
+    assertNotNull(data);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    data.writeTo(0, data.getSize(), out);
+    data.close();
+    return out.toString();
+  }
+
+  private List<String> readIndex() throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    final BufferedReader in = new BufferedReader(new FileReader(index));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+}
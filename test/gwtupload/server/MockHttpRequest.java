@@ -4,18 +4,24 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
-import javax.servlet.http.HttpSessionContext;
+import javax.servlet.http.Part;
 
 @SuppressWarnings({ "unchecked", "deprecation" })
 public class MockHttpRequest implements HttpServletRequest {
@@ -24,7 +30,7 @@ public class MockHttpRequest implements HttpServletRequest {
   public Object getAttribute(String name) {
     return session.getAttribute(name);
   }
-  public Enumeration getAttributeNames() {
+  public Enumeration<String> getAttributeNames() {
     return null;
   }
   public String getAuthType() {
@@ -51,10 +57,10 @@ public class MockHttpRequest implements HttpServletRequest {
   public String getHeader(String name) {
     return null;
   }
-  public Enumeration getHeaderNames() {
+  public Enumeration<String> getHeaderNames() {
     return null;
   }
-  public Enumeration getHeaders(String name) {
+  public Enumeration<String> getHeaders(String name) {
     return null;
   }
   public ServletInputStream getInputStream() throws IOException {
@@ -69,7 +75,7 @@ public class MockHttpRequest implements HttpServletRequest {
   public Locale getLocale() {
     return null;
   }
-  public Enumeration getLocales() {
+  public Enumeration<Locale> getLocales() {
     return null;
   }
   public String getLocalName() {
@@ -84,10 +90,10 @@ public class MockHttpRequest implements HttpServletRequest {
   public String getParameter(String name) {
     return null;
   }
-  public Map getParameterMap() {
+  public Map<String, String[]> getParameterMap() {
     return null;
   }
-  public Enumeration getParameterNames() {
+  public Enumeration<String> getParameterNames() {
     return null;
   }
   public String[] getParameterValues(String name) {
@@ -186,6 +192,40 @@ public class MockHttpRequest implements HttpServletRequest {
   public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
     
   }
+  public ServletContext getServletContext() {
+    return null;
+  }
+  public AsyncContext startAsync() {
+    throw new IllegalStateException("Async not supported");
+  }
+  public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+    throw new IllegalStateException("Async not supported");
+  }
+  public boolean isAsyncStarted() {
+    return false;
+  }
+  public boolean isAsyncSupported() {
+    return false;
+  }
+  public AsyncContext getAsyncContext() {
+    return null;
+  }
+  public DispatcherType getDispatcherType() {
+    return DispatcherType.REQUEST;
+  }
+  public boolean authenticate(HttpServletResponse response) {
+    return false;
+  }
+  public void login(String username, String password) {
+  }
+  public void logout() {
+  }
+  public Collection<Part> getParts() {
+    return null;
+  }
+  public Part getPart(String name) {
+    return null;
+  }
   
 }
 
@@ -198,7 +238,7 @@ class MockSession implements HttpSession {
   public Object getAttribute(String name) {
     return attributes.get(name);
   }
-  public Enumeration getAttributeNames() {
+  public Enumeration<String> getAttributeNames() {
     return null;
   }
   public long getCreationTime() {
@@ -218,7 +258,7 @@ class MockSession implements HttpSession {
   public ServletContext getServletContext() {
     return null;
   }
-  public HttpSessionContext getSessionContext() {
+  public javax.servlet.http.HttpSessionContext getSessionContext() {
     return null;
   }
   public Object getValue(String name) {
@@ -0,0 +1,144 @@
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/** A response that keeps its status, headers and body, with the last value of each header. */
+public class MockHttpResponse implements HttpServletResponse {
+  final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  final Map<String, String> headers = new HashMap<String, String>();
+  int status = SC_OK;
+  String contentType;
+  boolean committed;
+
+  public ServletOutputStream getOutputStream() {
+    return new ServletOutputStream() {
+      public void write(int b) {
+        body.write(b);
+      }
+    };
+  }
+  public PrintWriter getWriter() {
+    return new PrintWriter(getOutputStream());
+  }
+  public int getStatus() {
+    return status;
+  }
+  public void setStatus(int sc) {
+    status = sc;
+  }
+  @Deprecated
+  public void setStatus(int sc, String sm) {
+    status = sc;
+  }
+  public void sendError(int sc) {
+    status = sc;
+    committed = true;
+  }
+  public void sendError(int sc, String msg) {
+    status = sc;
+    committed = true;
+  }
+  public String getContentType() {
+    return contentType;
+  }
+  public void setContentType(String type) {
+    contentType = type;
+  }
+  public void addCookie(Cookie cookie) {
+  }
+  public boolean containsHeader(String name) {
+    return headers.containsKey(name);
+  }
+  public String encodeURL(String url) {
+    return url;
+  }
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+  @Deprecated
+  public String encodeUrl(String url) {
+    return url;
+  }
+  @Deprecated
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+  public void sendRedirect(String location) {
+    status = SC_FOUND;
+    headers.put("Location", location);
+  }
+  public void setDateHeader(String name, long date) {
+    headers.put(name, String.valueOf(date));
+  }
+  public void addDateHeader(String name, long date) {
+    setDateHeader(name, date);
+  }
+  public void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+  public void addHeader(String name, String value) {
+    headers.put(name, value);
+  }
+  public void setIntHeader(String name, int value) {
+    headers.put(name, String.valueOf(value));
+  }
+  public void addIntHeader(String name, int value) {
+    setIntHeader(name, value);
+  }
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+  public Collection<String> getHeaders(String name) {
+    final Collection<String> values = new ArrayList<String>();
+    if (headers.containsKey(name)) {
+      values.add(headers.get(name));
+    }
+    return values;
+  }
+  public Collection<String> getHeaderNames() {
+    return new ArrayList<String>(headers.keySet());
+  }
+  public String getCharacterEncoding() {
+    return "ISO-8859-1";
+  }
+  public void setCharacterEncoding(String charset) {
+  }
+  public void setContentLength(int len) {
+    headers.put("Content-Length", String.valueOf(len));
+  }
+  public void setBufferSize(int size) {
+  }
+  public int getBufferSize() {
+    return 0;
+  }
+  public void flushBuffer() {
+    committed = true;
+  }
+  public void resetBuffer() {
+    body.reset();
+  }
+  public boolean isCommitted() {
+    return committed;
+  }
+  public void reset() {
+    body.reset();
+    headers.clear();
+    status = SC_OK;
+  }
+  public void setLocale(Locale loc) {
+  }
+  public Locale getLocale() {
+    return Locale.getDefault();
+  }
+
+}
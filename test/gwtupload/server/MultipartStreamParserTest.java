@@ -0,0 +1,319 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.MultipartStream.MalformedStreamException;
+import org.apache.commons.fileupload.ProgressListener;
+import org.apache.commons.fileupload.RequestContext;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.junit.Test;
+
+/**
+ * Parses bodies with {@link MultipartStreamParser}, read in chunks of every size, and checks the
+ * parts against the ones commons-fileupload finds in the same body.
+ */
+public class MultipartStreamParserTest {
+
+  private static final String BOUNDARY = "----gwtuploadTestBoundaryX3q";
+  private static final String CONTENT_TYPE = "multipart/form-data; boundary=" + BOUNDARY;
+
+  @Test
+  public void parsesFieldsAndFile() throws Exception {
+    final byte[] body = ascii("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"field\"\r\n\r\nvalue\r\n" //
+        + "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\nContent-Type: text/plain\r\n\r\n" //
+        + "file content\r\n--" + BOUNDARY + "--\r\n");
+    final List<Item> items = parse(body, Integer.MAX_VALUE);
+    assertEquals(2, items.size());
+    assertEquals("field", items.get(0).fieldName);
+    assertTrue(items.get(0).formField);
+    assertEquals("value", new String(items.get(0).data, "ISO-8859-1"));
+    assertEquals("file", items.get(1).fieldName);
+    assertEquals("a.txt", items.get(1).name);
+    assertEquals("text/plain", items.get(1).contentType);
+    assertFalse(items.get(1).formField);
+    assertEquals("file content", new String(items.get(1).data, "ISO-8859-1"));
+  }
+
+  @Test
+  public void findsDelimitersSplitAcrossReads() throws Exception {
+    // data that starts like the delimiter, so a split inside it looks like part data for a while
+    final byte[] data = ascii("x\r\n--" + BOUNDARY.substring(0, 10) + "y\r\n-\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "z");
+    final byte[] body = body(new byte[][] { data, ascii("second") }, "", "");
+    for (int split = 1; split < body.length; split++) {
+      final List<Item> items = parse(new SplitInputStream(body, split), body.length, MultipartStreamParser.DEFAULT_BUFFER_SIZE);
+      assertEquals(2, items.size());
+      assertArrayEquals("split at " + split, data, items.get(0).data);
+      assertArrayEquals("split at " + split, ascii("second"), items.get(1).data);
+    }
+  }
+
+  @Test
+  public void findsDelimitersAtTheEndOfTheBuffer() throws Exception {
+    // the smallest buffer, with the delimiter around the point where it has to be refilled
+    final int bufferSize = 1;
+    for (int size = 16 * 1024 - 200; size < 16 * 1024 + 400; size += 7) {
+      final byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      final byte[] body = body(new byte[][] { data, data }, "", "");
+      final List<Item> items = parse(new ByteArrayInputStream(body), body.length, bufferSize);
+      assertEquals(2, items.size());
+      assertArrayEquals(data, items.get(0).data);
+      assertArrayEquals(data, items.get(1).data);
+    }
+  }
+
+  @Test
+  public void skipsPreambleAndEpilogue() throws Exception {
+    final byte[] body = body(new byte[][] { ascii("data") }, "This is a preamble, with a line\r\nbreak\r\n", "\r\nand an epilogue");
+    final CountingListener listener = new CountingListener();
+    final MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(body), ascii(BOUNDARY), body.length,
+        MultipartStreamParser.DEFAULT_BUFFER_SIZE, MultipartStreamParser.DEFAULT_PROGRESS_STEP, -1, listener);
+    final List<Item> items = readAll(parser);
+    assertEquals(1, items.size());
+    assertArrayEquals(ascii("data"), items.get(0).data);
+    // the epilogue is read too, so the last progress is the whole body
+    assertEquals(body.length, parser.getBytesRead());
+    assertEquals(body.length, listener.bytesRead);
+  }
+
+  @Test
+  public void acceptsPartsWithoutHeaders() throws Exception {
+    final byte[] body = ascii("--" + BOUNDARY + "\r\n\r\nno headers\r\n--" + BOUNDARY + "\r\n\r\n\r\n--" + BOUNDARY + "--");
+    final List<Item> items = parse(body, Integer.MAX_VALUE);
+    assertEquals(2, items.size());
+    assertNull(items.get(0).fieldName);
+    assertNull(items.get(0).name);
+    assertNull(items.get(0).contentType);
+    assertTrue(items.get(0).formField);
+    assertArrayEquals(ascii("no headers"), items.get(0).data);
+    assertEquals(0, items.get(1).data.length);
+  }
+
+  @Test
+  public void failsOnTruncatedStreams() throws Exception {
+    final byte[] body = body(new byte[][] { ascii("first part"), ascii("second part") }, "", "");
+    // anything cut before the closing delimiter is complete is malformed
+    for (int length = 0; length < body.length; length++) {
+      final byte[] truncated = new byte[length];
+      System.arraycopy(body, 0, truncated, 0, length);
+      try {
+        parse(truncated, Integer.MAX_VALUE);
+        fail("parsed a body cut at " + length);
+      } catch (MalformedStreamException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void stopsAtTheSizeLimit() throws Exception {
+    final byte[] body = body(new byte[][] { new byte[100 * 1024] }, "", "");
+    final MultipartStreamParser parser = new MultipartStreamParser(new SplitInputStream(body, 1000), ascii(BOUNDARY), body.length, 1, 1024,
+        50 * 1024, null);
+    try {
+      readAll(parser);
+      fail("read past the size limit");
+    } catch (MultipartStreamParser.SizeLimitException e) {
+      final SizeLimitExceededException converted = e.toFileUploadException();
+      assertEquals(50 * 1024, converted.getPermittedSize());
+      assertEquals(body.length, converted.getActualSize());
+    }
+  }
+
+  @Test
+  public void readsTheBoundaryOfAContentType() throws Exception {
+    assertArrayEquals(ascii("abc"), MultipartStreamParser.getBoundary("multipart/form-data; boundary=abc"));
+    assertArrayEquals(ascii("a b"), MultipartStreamParser.getBoundary("multipart/form-data; boundary=\"a b\"; charset=UTF-8"));
+    try {
+      MultipartStreamParser.getBoundary("application/x-www-form-urlencoded");
+      fail("found a boundary in a form");
+    } catch (FileUploadException e) {
+      // expected
+    }
+  }
+
+  /** Random bodies, read in random chunks, give the same parts as commons-fileupload. */
+  @Test
+  public void fuzzAgainstCommonsFileUpload() throws Exception {
+    final Random random = new Random(20100323L);
+    final byte[] delimiter = ascii("\r\n--" + BOUNDARY);
+    for (int round = 0; round < 300; round++) {
+      final byte[][] parts = new byte[random.nextInt(5)][];
+      for (int i = 0; i < parts.length; i++) {
+        do {
+          final ByteArrayOutputStream data = new ByteArrayOutputStream();
+          final int size = random.nextInt(4) == 0 ? random.nextInt(40 * 1024) : random.nextInt(200);
+          while (data.size() < size) {
+            if (random.nextInt(8) == 0) {
+              // a prefix of the delimiter, the hardest bytes for the search
+              data.write(delimiter, 0, 1 + random.nextInt(delimiter.length - 1));
+            } else {
+              data.write(random.nextInt(256));
+            }
+          }
+          parts[i] = data.toByteArray();
+        } while (indexOf(parts[i], delimiter) >= 0); // a random byte completed a delimiter
+      }
+      final byte[] body = body(parts, random.nextBoolean() ? "preamble\r\n" : "", random.nextBoolean() ? "\r\nepilogue" : "");
+      final List<Item> expected = parseWithCommons(body);
+      final int chunk = 1 + random.nextInt(random.nextBoolean() ? 16 : 64 * 1024);
+      final List<Item> actual = parse(new RandomChunkInputStream(body, chunk, random.nextLong()), body.length, random.nextInt(64 * 1024));
+      assertEquals("round " + round, expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals("round " + round, expected.get(i).fieldName, actual.get(i).fieldName);
+        assertEquals("round " + round, expected.get(i).name, actual.get(i).name);
+        assertEquals("round " + round, expected.get(i).contentType, actual.get(i).contentType);
+        assertArrayEquals("round " + round + ", part " + i, expected.get(i).data, actual.get(i).data);
+      }
+    }
+  }
+
+  private static List<Item> parse(byte[] body, int chunk) throws IOException, FileUploadException {
+    return parse(new SplitInputStream(body, chunk), body.length, MultipartStreamParser.DEFAULT_BUFFER_SIZE);
+  }
+
+  private static List<Item> parse(InputStream in, long contentLength, int bufferSize) throws IOException, FileUploadException {
+    return readAll(new MultipartStreamParser(in, ascii(BOUNDARY), contentLength, bufferSize, MultipartStreamParser.DEFAULT_PROGRESS_STEP, -1, null));
+  }
+
+  private static List<Item> parseWithCommons(final byte[] body) throws IOException, FileUploadException {
+    return readAll(new ServletFileUpload().getItemIterator(new RequestContext() {
+      public String getCharacterEncoding() {
+        return "ISO-8859-1";
+      }
+
+      public String getContentType() {
+        return CONTENT_TYPE;
+      }
+
+      public int getContentLength() {
+        return body.length;
+      }
+
+      public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+      }
+    }));
+  }
+
+  private static List<Item> readAll(FileItemIterator i) throws IOException, FileUploadException {
+    final List<Item> items = new ArrayList<Item>();
+    while (i.hasNext()) {
+      final FileItemStream s = i.next();
+      final ByteArrayOutputStream data = new ByteArrayOutputStream();
+      Streams.copy(s.openStream(), data, true);
+      items.add(new Item(s.getFieldName(), s.getName(), s.getContentType(), s.isFormField(), data.toByteArray()));
+    }
+    return items;
+  }
+
+  /** @return a body with a file part for each data, named after its position */
+  private static byte[] body(byte[][] parts, String preamble, String epilogue) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(ascii(preamble));
+    for (int i = 0; i < parts.length; i++) {
+      out.write(ascii("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"part" + i + "\"; filename=\"f" + i + ".bin\"\r\n"
+          + "Content-Type: application/octet-stream\r\n\r\n"));
+      out.write(parts[i]);
+      out.write(ascii("\r\n"));
+    }
+    out.write(ascii("--" + BOUNDARY + "--" + epilogue));
+    return out.toByteArray();
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern) {
+    for (int i = 0; i <= data.length - pattern.length; i++) {
+      int j = 0;
+      while (j < pattern.length && data[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] ascii(String s) {
+    try {
+      return s.getBytes("ISO-8859-1");
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /** A part as parsed. */
+  private static class Item {
+    final String fieldName;
+    final String name;
+    final String contentType;
+    final boolean formField;
+    final byte[] data;
+
+    Item(String fieldName, String name, String contentType, boolean formField, byte[] data) {
+      this.fieldName = fieldName;
+      this.name = name;
+      this.contentType = contentType;
+      this.formField = formField;
+      this.data = data;
+    }
+  }
+
+  /** Gives at most <code>split</code> bytes per read. */
+  private static class SplitInputStream extends FilterInputStream {
+    private final int split;
+
+    SplitInputStream(byte[] body, int split) {
+      super(new ByteArrayInputStream(body));
+      this.split = split;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, split));
+    }
+  }
+
+  /** Gives between 1 and <code>maxChunk</code> bytes per read. */
+  private static class RandomChunkInputStream extends FilterInputStream {
+    private final int maxChunk;
+    private final Random random;
+
+    RandomChunkInputStream(byte[] body, int maxChunk, long seed) {
+      super(new ByteArrayInputStream(body));
+      this.maxChunk = maxChunk;
+      this.random = new Random(seed);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1 + random.nextInt(maxChunk)));
+    }
+  }
+
+  private static class CountingListener implements ProgressListener {
+    long bytesRead;
+
+    public void update(long bytesRead, long contentLength, int items) {
+      this.bytesRead = bytesRead;
+    }
+  }
+
+}
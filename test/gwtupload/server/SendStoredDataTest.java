@@ -0,0 +1,205 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends an upload stored in a memory repository through {@link UploadServlet#sendStoredData}
+ * with the Range, If-Range, If-None-Match and If-Modified-Since headers a browser sends.
+ */
+public class SendStoredDataTest {
+
+  private static final Integer TOKEN = Integer.valueOf(1);
+  private UploadServlet servlet;
+  private String etag;
+  private long lastModified;
+
+  @Before
+  public void setUp() throws Exception {
+    servlet = new UploadServlet() {
+      protected FileRepository newFileRepository() {
+        return new MemoryFileRepository();
+      }
+    };
+    servlet.repo = servlet.newFileRepository();
+    servlet.repo.saveData(TOKEN, "text/plain", new ByteArrayInputStream("0123456789".getBytes()), null);
+    final StoredData data = ((RangedFileRepository) servlet.repo).loadData(TOKEN, 0);
+    etag = data.getETag();
+    lastModified = data.getLastModified();
+  }
+
+  @Test
+  public void sendsTheWholeFileWithValidators() throws Exception {
+    final MockHttpResponse response = send("GET");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("0123456789", response.body.toString());
+    assertEquals("10", response.getHeader("Content-Length"));
+    assertEquals("bytes", response.getHeader("Accept-Ranges"));
+    assertEquals(etag, response.getHeader("ETag"));
+    assertEquals(String.valueOf(lastModified), response.getHeader("Last-Modified"));
+    assertEquals("text/plain", response.contentType);
+  }
+
+  @Test
+  public void headSendsNoBody() throws Exception {
+    final MockHttpResponse response = send("HEAD");
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("10", response.getHeader("Content-Length"));
+    assertEquals(0, response.body.size());
+  }
+
+  @Test
+  public void sendsARange() throws Exception {
+    final MockHttpResponse response = send("GET", "Range", "bytes=2-5");
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+    assertEquals("2345", response.body.toString());
+    assertEquals("bytes 2-5/10", response.getHeader("Content-Range"));
+    assertEquals("4", response.getHeader("Content-Length"));
+  }
+
+  @Test
+  public void sendsOpenAndSuffixRanges() throws Exception {
+    assertRange("bytes=7-", "bytes 7-9/10", "789");
+    assertRange("bytes=-3", "bytes 7-9/10", "789");
+    assertRange("bytes=-30", "bytes 0-9/10", "0123456789");
+    assertRange("bytes=5-100", "bytes 5-9/10", "56789");
+    assertRange("bytes= 0 - 0", "bytes 0-0/10", "0");
+  }
+
+  @Test
+  public void refusesRangesPastTheEnd() throws Exception {
+    for (String range : new String[] { "bytes=10-", "bytes=10-20", "bytes=-0" }) {
+      final MockHttpResponse response = send("GET", "Range", range);
+      assertEquals(range, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.status);
+      assertEquals(range, "bytes */10", response.getHeader("Content-Range"));
+      assertEquals(range, 0, response.body.size());
+    }
+  }
+
+  @Test
+  public void sendsTheWholeFileForRangesItDoesNotServe() throws Exception {
+    for (String range : new String[] { "bytes=0-1,3-4", "bytes=5-2", "bytes=a-b", "bytes=5", "items=0-1" }) {
+      final MockHttpResponse response = send("GET", "Range", range);
+      assertEquals(range, HttpServletResponse.SC_OK, response.status);
+      assertEquals(range, "0123456789", response.body.toString());
+      assertNull(range, response.getHeader("Content-Range"));
+    }
+  }
+
+  @Test
+  public void ifRangeWithTheCurrentVersionSendsTheRange() throws Exception {
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, send("GET", "Range", "bytes=2-5", "If-Range", etag).status);
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, send("GET", "Range", "bytes=2-5", "If-Range", date(lastModified)).status);
+  }
+
+  @Test
+  public void ifRangeWithAnotherVersionSendsTheWholeFile() throws Exception {
+    for (String ifRange : new String[] { "\"other\"", "W/" + etag, date(lastModified - 60000), "yesterday" }) {
+      final MockHttpResponse response = send("GET", "Range", "bytes=2-5", "If-Range", ifRange);
+      assertEquals(ifRange, HttpServletResponse.SC_OK, response.status);
+      assertEquals(ifRange, "0123456789", response.body.toString());
+    }
+  }
+
+  @Test
+  public void ifNoneMatchWithTheCurrentTagIsNotModified() throws Exception {
+    for (String tags : new String[] { etag, "W/" + etag, "*", "\"other\", " + etag }) {
+      final MockHttpResponse response = send("GET", "If-None-Match", tags);
+      assertEquals(tags, HttpServletResponse.SC_NOT_MODIFIED, response.status);
+      assertEquals(tags, 0, response.body.size());
+      assertEquals(tags, etag, response.getHeader("ETag"));
+    }
+  }
+
+  @Test
+  public void ifNoneMatchWithOtherTagsWinsOverTheDate() throws Exception {
+    final MockHttpResponse response = send("GET", "If-None-Match", "\"other\"", "If-Modified-Since", date(lastModified + 60000));
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("0123456789", response.body.toString());
+  }
+
+  @Test
+  public void ifModifiedSinceComparesSeconds() throws Exception {
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, send("GET", "If-Modified-Since", date(lastModified)).status);
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, send("GET", "If-Modified-Since", date(lastModified + 60000)).status);
+    assertEquals(HttpServletResponse.SC_OK, send("GET", "If-Modified-Since", date(lastModified - 60000)).status);
+    assertEquals(HttpServletResponse.SC_OK, send("GET", "If-Modified-Since", "yesterday").status);
+  }
+
+  @Test
+  public void unknownUploadsAreLeftToSendData() throws Exception {
+    final MockHttpResponse response = new MockHttpResponse();
+    assertFalse(servlet.sendStoredData(request("GET"), response, Integer.valueOf(2), 0));
+    assertEquals(0, response.body.size());
+  }
+
+  private void assertRange(String range, String contentRange, String body) throws Exception {
+    final MockHttpResponse response = send("GET", "Range", range);
+    assertEquals(range, HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+    assertEquals(range, contentRange, response.getHeader("Content-Range"));
+    assertEquals(range, body, response.body.toString());
+  }
+
+  private MockHttpResponse send(String method, String... headers) throws Exception {
+    final MockHttpResponse response = new MockHttpResponse();
+    assertTrue(servlet.sendStoredData(request(method, headers), response, TOKEN, 0));
+    return response;
+  }
+
+  /** @return a request with these header names and values */
+  private static MockHttpRequest request(final String method, String... headers) {
+    final Map<String, String> values = new HashMap<String, String>();
+    for (int i = 0; i < headers.length; i += 2) {
+      values.put(headers[i], headers[i + 1]);
+    }
+    return new MockHttpRequest() {
+      public String getMethod() {
+        return method;
+      }
+
+      public String getHeader(String name) {
+        return values.get(name);
+      }
+
+      public long getDateHeader(String name) {
+        final String value = values.get(name);
+        if (value == null) {
+          return -1;
+        }
+        try {
+          return format().parse(value).getTime();
+        } catch (ParseException e) {
+          throw new IllegalArgumentException("Not a date: " + value);
+        }
+      }
+    };
+  }
+
+  private static String date(long millis) {
+    return format().format(new Date(millis));
+  }
+
+  private static DateFormat format() {
+    final DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+
+}
@@ -0,0 +1,67 @@
+package gwtupload.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Reserves bytes from a {@link TokenBucket} and checks the waits it returns. The clock keeps
+ * running between calls, so waits are checked within {@link #SLACK} of their expected value.
+ */
+public class TokenBucketTest {
+
+  private static final long MILLIS = 1000000L;
+  private static final long SLACK = 50 * MILLIS;
+
+  @Test
+  public void burstIsFreeThenBytesWaitForTheRate() {
+    final TokenBucket bucket = new TokenBucket(1000, 500);
+    assertEquals(0, bucket.reserve(500));
+    assertWait(1000 * MILLIS, bucket.reserve(1000));
+    // reservations add up
+    assertWait(1100 * MILLIS, bucket.reserve(100));
+  }
+
+  @Test
+  public void idleBucketSavesOnlyTheBurst() throws InterruptedException {
+    final TokenBucket bucket = new TokenBucket(1000, 100);
+    assertEquals(0, bucket.reserve(100));
+    Thread.sleep(300);
+    assertEquals(0, bucket.reserve(100));
+    assertWait(100 * MILLIS, bucket.reserve(100));
+  }
+
+  @Test
+  public void hugeReservationsDoNotOverflow() {
+    final TokenBucket bucket = new TokenBucket(1, 0);
+    final long first = bucket.reserve(Long.MAX_VALUE);
+    assertTrue(first >= Long.MAX_VALUE / 4 - SLACK);
+    assertTrue(bucket.reserve(Long.MAX_VALUE) > first);
+    assertTrue(bucket.reserve(1) > first);
+
+    // the largest size computed exactly
+    final long bytes = Long.MAX_VALUE / 1000000000L - 1;
+    assertWait(bytes * 1000000000L, new TokenBucket(1, 0).reserve(bytes));
+  }
+
+  @Test
+  public void isIdleOnceFullForTheTimeGiven() throws InterruptedException {
+    final TokenBucket bucket = new TokenBucket(1000, 100);
+    Thread.sleep(1);
+    assertTrue(bucket.isIdle(0));
+    assertFalse(bucket.isIdle(1000 * MILLIS));
+
+    bucket.reserve(100);
+    assertFalse(bucket.isIdle(0));
+    Thread.sleep(150);
+    assertTrue(bucket.isIdle(0));
+    assertFalse(bucket.isIdle(1000 * MILLIS));
+  }
+
+  private static void assertWait(long expected, long actual) {
+    assertTrue("Waits " + actual + "ns instead of " + expected, actual <= expected && actual > expected - SLACK);
+  }
+
+}